@@ -1,27 +1,33 @@
 package classifier;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 
 import classifier.classifiers.core.KNN;
 import classifier.classifiers.core.NaiveBayes;
+import classifier.classifiers.experimental.CascadeClassifier;
 import classifier.classifiers.experimental.DocumentCategorizer;
+import classifier.classifiers.interfaces.GenericClassifier;
+import classifier.evaluation.CrossValidation;
 import classifier.messagetypes.Message;
 import classifier.messagetypes.TokenizedMessage;
-import classifier.utils.Tokenizer;
+import classifier.utils.CorpusLoader;
+import classifier.utils.MessageStreamReader;
+import classifier.utils.Parallel;
+import classifier.utils.TermWeighting;
+import classifier.utils.WranglePipeline;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
-import static java.util.stream.Collectors.toList;
-
 
 @Command(name = "classifier.Classify", mixinStandardHelpOptions = true,
-        version = "Email Classifier 0.1.1")
+        version = "Email Classifier 0.1.1", subcommands = {Serve.class})
 public class Classify implements Runnable {
 
     @Option(names = { "-s", "--stopwords" },
@@ -32,16 +38,55 @@ public class Classify implements Runnable {
             description = "Verbose mode. Multiple -v options increase the verbosity.")
     private boolean[] verbose = new boolean[0];
 
-    @Option(names = {"-a", "--algorithm"}, description = "KNN, NB, DC")
+    @Option(names = {"-a", "--algorithm"}, description = "KNN, NB, DC, CASCADE")
     private String algorithm = "knn";
 
+    @Option(names = {"--escalateTo"},
+            description = "Cascade: KNN or DC, classifying the messages Naive Bayes is uncertain about.")
+    private String escalateTo = "knn";
+
+    @Option(names = {"--band"},
+            description = "Cascade: messages with Naive Bayes log-odds within [-band, band] are escalated.")
+    private double band = 1.0;
+
     // TODO Add options for setting OpenNLP DocumentCategorizerME parameters.
 
-    // TODO Add option for running cross-validation.
+    @Option(names = {"--cv"}, paramLabel = "N",
+            description = "Cross-validate over N folds of the training and test sets combined.")
+    private int crossValidationFolds = 0;
 
     @Option(names = {"-k", "--k"}, description = "Number of nearest neighbors - the K in KNN.")
     private int kforKNN = 3;
 
+    @Option(names = {"-w", "--weighting"}, description = "Term weighting for KNN: NONE, TFIDF, BM25.")
+    private String weighting = "none";
+
+    @Option(names = {"--lshBands"},
+            description = "Approximate KNN: number of MinHash LSH bands, 0 for exact search.")
+    private int lshBands = 0;
+
+    @Option(names = {"--lshRows"}, description = "Approximate KNN: number of MinHash rows per band.")
+    private int lshRows = 2;
+
+    @Option(names = {"-t", "--threads"}, description = "Number of threads for classifying messages.")
+    private int threads = 1;
+
+    @Option(names = {"--saveModel"}, paramLabel = "FILE",
+            description = "Save the trained model to a file (KNN, NB).")
+    private Path saveModelPath;
+
+    @Option(names = {"--loadModel"}, paramLabel = "FILE",
+            description = "Load a saved model instead of training (KNN, NB).")
+    private Path loadModelPath;
+
+    @Option(names = {"--stream"},
+            description = "Classify messages read from standard input instead of the test set.")
+    private boolean stream = false;
+
+    @Option(names = {"--streamBatch"},
+            description = "Number of streamed messages classified and written together.")
+    private int streamBatch = 64;
+
     @Option(names = {"--trainPath"}, description = "Path within data folder to training data.")
     private String trainDataPath = "train";
 
@@ -67,19 +112,14 @@ public class Classify implements Runnable {
     private Path testFullPath;
 
     /**
-     * The set of parsed messages in training set.
-     */
-    private ArrayList<Message> trainMessages = new ArrayList<>();
-
-    /**
-     * The set of parsed messages in training set.
+     * The pipeline wrangling each message, assembled from arguments.
      */
-    private ArrayList<Message> testMessages = new ArrayList<>();
+    private WranglePipeline wranglePipeline;
 
     /**
-     * The set of tokenized messages.
+     * Term weighting parsed from the weighting option.
      */
-    private ArrayList<TokenizedMessage> tokenizedMessages = new ArrayList<>();
+    private TermWeighting termWeighting;
 
     /**
      * The main point of entry for the application.
@@ -96,9 +136,26 @@ public class Classify implements Runnable {
         //    SET UP THE SETUP    /
         //-----------------------+
 
-        // TODO Clean this up and add optional params to pass in paths.
-        trainFullPath = Paths.get(inputPath.toString(), trainDataPath);
-        testFullPath = Paths.get(inputPath.toString(), testDataPath);
+        if (!setUp()) {
+            return;
+        }
+
+        // Stream mode writes only results to standard output.
+        if (stream) {
+            // One pool for the whole stream, wrangling and scoring every batch.
+            ForkJoinPool pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+            try {
+                Function<List<TokenizedMessage>, double[]> scorer = buildScorer(loadTrainingData(), pool);
+                if (scorer != null) {
+                    classifyStream(scorer, pool);
+                }
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+            return;
+        }
 
 
         //------------------------------------+
@@ -108,26 +165,23 @@ public class Classify implements Runnable {
         printVerboseHeader();
 
 
-        //---------------------+
-        //    GET THE DATA    /
-        //-------------------+
-
-        // Training data.
-        trainMessages = loadData(trainFullPath);
+        //---------------------------------+
+        //    GET AND WRANGLE THE DATA    /
+        //-------------------------------+
 
-        // Testing data.
-        testMessages = loadData(testFullPath);
-
-
-        //-------------------------+
-        //    WRANGLE THE DATA    /
-        //-----------------------+
-
-        // Get wrangled training set of messages.
-        List<TokenizedMessage> wrangledTrainMessages = runTheWranglePipeline(trainMessages);
+        // Get wrangled training set of messages, unless a saved model is loaded.
+        List<TokenizedMessage> wrangledTrainMessages = loadTrainingData();
 
         // get wrangled test set of messages.
-        List<TokenizedMessage> wrangledTestMessages = runTheWranglePipeline(testMessages);
+        List<TokenizedMessage> wrangledTestMessages = loadData(testFullPath);
+
+        // Cross-validate over both sets instead of testing.
+        if (crossValidationFolds > 0) {
+            List<TokenizedMessage> corpus = new ArrayList<>(wrangledTrainMessages);
+            corpus.addAll(wrangledTestMessages);
+            crossValidate(corpus);
+            return;
+        }
 
 
         //--------------------------------+
@@ -136,10 +190,18 @@ public class Classify implements Runnable {
 
         // KNN
         if (algorithm.toLowerCase().equals("knn")) {
-            // Create auto-trained instance of the KNN classifer, then
-            // classify all the things.
-            KNN knn = new KNN(wrangledTrainMessages, kforKNN);
-            knn.predictDataSet(wrangledTestMessages);
+            // Create auto-trained instance of the KNN classifer, or map
+            // a saved index, then classify all the things.
+            KNN knn = buildKNN(wrangledTrainMessages);
+            if (knn == null) {
+                return;
+            }
+            knn.predictDataSet(wrangledTestMessages, threads);
+
+            // Measure the approximate search against the exact search.
+            if (knn.isApproximate()) {
+                knn.printApproximateReport(wrangledTestMessages, threads);
+            }
         }
 
         // Apache OpenNLP Document Categorizer.
@@ -147,20 +209,227 @@ public class Classify implements Runnable {
             // Create the auto-trained instance of the categorizer, then
             // classify all the things.
             DocumentCategorizer dc = new DocumentCategorizer(wrangledTrainMessages);
-            dc.predictDataSet(wrangledTestMessages);
+            dc.predictDataSet(wrangledTestMessages, threads);
         }
 
         // Naive Bayes
         if (algorithm.toLowerCase().equals("nb")) {
-            NaiveBayes nb = new NaiveBayes();
+            NaiveBayes nb = buildNaiveBayes(wrangledTrainMessages);
+            if (nb == null) {
+                return;
+            }
             nb.setVerbosity(verbose.length);
 
-            nb.train(wrangledTrainMessages);
             nb.test(wrangledTestMessages);
 
 //            nb.train(wrangledTestMessages);
 //            nb.test(wrangledTrainMessages);
         }
+
+        // Naive Bayes, escalating uncertain messages to KNN or DC.
+        if (algorithm.toLowerCase().equals("cascade")) {
+            CascadeClassifier cascade = buildCascade(wrangledTrainMessages);
+            if (cascade == null) {
+                return;
+            }
+            cascade.predictDataSet(wrangledTestMessages, threads);
+            cascade.printEscalationReport();
+        }
+    }
+
+
+    //------------------------------------+
+    //     PACKAGE METHODS FOR SERVE     /
+    //----------------------------------+
+
+    /**
+     * Assemble the paths, term weighting and wrangle pipeline from the
+     * arguments, and check they go together.
+     * @return false if the arguments are invalid, after printing why
+     */
+    boolean setUp() {
+
+        // TODO Clean this up and add optional params to pass in paths.
+        trainFullPath = Paths.get(inputPath.toString(), trainDataPath);
+        testFullPath = Paths.get(inputPath.toString(), testDataPath);
+
+        try {
+            termWeighting = TermWeighting.of(weighting);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Unknown term weighting: " + weighting);
+            return false;
+        }
+        if (termWeighting != TermWeighting.NONE && !usesKNN()) {
+            System.err.println("Term weighting is only supported for KNN.");
+            return false;
+        }
+        if (lshBands > 0 && (!usesKNN() || lshRows < 1)) {
+            System.err.println("Approximate search is only supported for KNN, with at least one row per band.");
+            return false;
+        }
+
+        if (crossValidationFolds != 0 && (crossValidationFolds < 2 || stream
+                || saveModelPath != null || loadModelPath != null)) {
+            System.err.println("Cross-validation needs at least 2 folds and trains every fold, "
+                    + "without saved models or streaming.");
+            return false;
+        }
+
+        // Saved models are only supported by KNN and Naive Bayes.
+        if ((saveModelPath != null || loadModelPath != null)
+                && (algorithm.toLowerCase().equals("dc") || algorithm.toLowerCase().equals("cascade"))) {
+            System.err.println("Saving and loading models is only supported for KNN and NB.");
+            return false;
+        }
+
+        if (algorithm.toLowerCase().equals("cascade")
+                && !(escalateTo.toLowerCase().equals("knn") || escalateTo.toLowerCase().equals("dc"))) {
+            System.err.println("A cascade escalates to KNN or DC.");
+            return false;
+        }
+        if (!(band >= 0.0)) {
+            System.err.println("The cascade band must be at least 0.");
+            return false;
+        }
+
+        wranglePipeline = buildWranglePipeline();
+        return true;
+    }
+
+    /**
+     * Get wrangled training set of messages, unless a saved model is loaded.
+     * @return training messages, empty if a saved model is loaded
+     */
+    List<TokenizedMessage> loadTrainingData() {
+        return (loadModelPath == null) ? loadData(trainFullPath) : Collections.emptyList();
+    }
+
+    /**
+     * Train KNN or map a saved index, save it if asked to and set up
+     * approximate search.
+     * @param wrangledTrainMessages training messages
+     * @return the classifier, or null if the model can't be loaded or saved
+     */
+    KNN buildKNN(List<TokenizedMessage> wrangledTrainMessages) {
+        KNN knn;
+        try {
+            if (loadModelPath != null) {
+                knn = KNN.load(loadModelPath, kforKNN);
+            } else {
+                knn = new KNN(wrangledTrainMessages, kforKNN, termWeighting);
+            }
+
+            if (saveModelPath != null) {
+                knn.save(saveModelPath);
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+            return null;
+        }
+        knn.setApproximate(lshBands, lshRows);
+        return knn;
+    }
+
+    /**
+     * Train Naive Bayes or map a saved model, and save it if asked to.
+     * @param wrangledTrainMessages training messages
+     * @return the classifier, or null if the model can't be loaded or saved
+     */
+    NaiveBayes buildNaiveBayes(List<TokenizedMessage> wrangledTrainMessages) {
+        NaiveBayes nb;
+        try {
+            if (loadModelPath != null) {
+                // Map the saved model instead of training.
+                nb = NaiveBayes.load(loadModelPath);
+            } else {
+                nb = new NaiveBayes();
+                nb.train(wrangledTrainMessages);
+            }
+
+            if (saveModelPath != null) {
+                nb.save(saveModelPath);
+            }
+        } catch (IOException | IllegalStateException ex) {
+            System.err.println(ex);
+            return null;
+        }
+        return nb;
+    }
+
+    /**
+     * Train Naive Bayes and the classifier it escalates uncertain messages to.
+     * @param wrangledTrainMessages training messages
+     * @return the classifier, or null if a model can't be built
+     */
+    CascadeClassifier buildCascade(List<TokenizedMessage> wrangledTrainMessages) {
+        NaiveBayes nb = buildNaiveBayes(wrangledTrainMessages);
+        GenericClassifier expensive = escalateTo.toLowerCase().equals("dc")
+                ? new DocumentCategorizer(wrangledTrainMessages)
+                : buildKNN(wrangledTrainMessages);
+        if (nb == null || expensive == null) {
+            return null;
+        }
+        return new CascadeClassifier(nb, expensive, band);
+    }
+
+    /**
+     * Train or load the model of the selected algorithm.
+     * @param wrangledTrainMessages training messages
+     * @param scoringPool pool to score each batch on, owned by the caller,
+     *                    or null to score on the calling thread
+     * @return spam scores of a batch of messages, from 0 to 1, spam above 0.5;
+     *         null if the model can't be built
+     */
+    Function<List<TokenizedMessage>, double[]> buildScorer(List<TokenizedMessage> wrangledTrainMessages,
+                                                           ForkJoinPool scoringPool) {
+        GenericClassifier classifier;
+        switch (algorithm.toLowerCase()) {
+            case "knn":
+                classifier = buildKNN(wrangledTrainMessages);
+                break;
+            case "dc":
+                classifier = new DocumentCategorizer(wrangledTrainMessages);
+                break;
+            case "nb":
+                classifier = buildNaiveBayes(wrangledTrainMessages);
+                break;
+            case "cascade":
+                classifier = buildCascade(wrangledTrainMessages);
+                break;
+            default:
+                System.err.println("Unknown algorithm: " + algorithm);
+                return null;
+        }
+        if (classifier == null) {
+            return null;
+        }
+
+        return messages -> classifier.scoreAll(messages, scoringPool);
+    }
+
+    String getAlgorithm() {
+        return algorithm.toLowerCase();
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    WranglePipeline getWranglePipeline() {
+        return wranglePipeline;
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * @return true if the selected algorithm is KNN or a cascade escalating to KNN
+     */
+    private boolean usesKNN() {
+        return algorithm.toLowerCase().equals("knn")
+                || (algorithm.toLowerCase().equals("cascade") && escalateTo.toLowerCase().equals("knn"));
     }
 
     /**
@@ -173,7 +442,13 @@ public class Classify implements Runnable {
             System.out.println("Algorithm: " + algorithm);
             if (algorithm.equals("knn")) {
                 System.out.println("K: " + kforKNN);
+                System.out.println("Weighting: " + weighting);
+            }
+            if (algorithm.equals("cascade")) {
+                System.out.println("Escalate to: " + escalateTo);
+                System.out.println("Band: " + band);
             }
+            System.out.println("Threads: " + threads);
         }
 
         // If very verbose, print paths to all files in input path directory, also.
@@ -212,142 +487,148 @@ public class Classify implements Runnable {
     }
 
     /**
-     * Wrangle messages:
+     * Assemble the pipeline to wrangle messages:
      *  - tokenize
      *  - normalize
      *  - remove stop words
-     * @param messages list of messages
-     * @return list of wrangled messages
+     * @return the wrangle pipeline
      */
-    private ArrayList<TokenizedMessage> runTheWranglePipeline(ArrayList<Message> messages) {
+    private WranglePipeline buildWranglePipeline() {
 
-        // Create empty list to store wrangled messages.
-        ArrayList<TokenizedMessage> wrangledMessages = new ArrayList<>();
+        // Tokenize and covert to lowercase.
+        WranglePipeline pipeline = new WranglePipeline().normalize();
 
-        //==================+
-        //     Tokenize     |
-        //==================+
-
-        // Populate ArrayList with tokenized messages.
-        for (Message message : messages) {
-            wrangledMessages.add(Tokenizer.tokenize(message));
+        // Remove stop words.
+        if (removeStopWords) {
+            pipeline.removeStopWords();
         }
 
-        // DEBUG
-        //for (classifier.messagetypes.TokenizedMessage wrMessage : wrangledMessages) {
-        //    System.out.println(wrMessage);
-        //}
-
-        //===================+
-        //     Normalize     |
-        //===================+
+        // TODO Stemming.
 
-        // - Covert to lowercase.
-        for (TokenizedMessage tkMessage : wrangledMessages) {
-            tkMessage.setSubjectTokens(tkMessage.getSubjectTokens().stream()
-                    .map(String::toLowerCase)
-                    .collect(toList()));
-
-            tkMessage.setBodyTokens(tkMessage.getBodyTokens().stream()
-                    .map(String::toLowerCase)
-                    .collect(toList()));
+        // Term weighting needs the document frequencies of the training set,
+        // so KNN weighs its index and the test messages itself. Weighting
+        // uses term counts, so keep duplicate tokens.
+        if (termWeighting != TermWeighting.NONE) {
+            pipeline.removeDuplicates(false);
         }
 
-        // DEBUG
-        //for (classifier.messagetypes.TokenizedMessage wrMessage : wrangledMessages) {
-        //    System.out.println(wrMessage);
-        //}
-
-        //===========================+
-        //     Remove Stop Words     |
-        //===========================+
+        // Only the document categorizer needs the raw message text after wrangling.
+        pipeline.retainRawText(algorithm.toLowerCase().equals("dc")
+                || (algorithm.toLowerCase().equals("cascade") && escalateTo.toLowerCase().equals("dc")));
 
-        // TODO Refer to list of top stop words?
-        String[] defaultStopWords = {"i", "a", "about", "an",
-                "are", "as", "at", "be", "by", "com", "for", "from", "how",
-                "in", "is", "it", "of", "on", "or", "that", "the", "this",
-                "to", "was", "what", "when", "where", "who", "will", "with"};
-        Set stopWords = new HashSet<>(Arrays.asList(defaultStopWords));
-
-
-        // TODO More efficient way to do this?
-        for (TokenizedMessage tkMessage : wrangledMessages) {
+        return pipeline;
+    }
 
-            // Get Lists of tokens.
-            List<String> subjectTokens = tkMessage.getSubjectTokens();
-            List<String> bodyTokens = tkMessage.getBodyTokens();
+    /**
+     * Cross-validate the selected algorithm and print the report. Folds run
+     * concurrently on the given number of threads.
+     * @param corpus wrangled messages of the training and test sets
+     */
+    private void crossValidate(List<TokenizedMessage> corpus) {
+        Function<List<TokenizedMessage>, GenericClassifier> trainer;
+        switch (algorithm.toLowerCase()) {
+            case "knn":
+                trainer = train -> {
+                    KNN knn = new KNN(train, kforKNN, termWeighting);
+                    knn.setApproximate(lshBands, lshRows);
+                    return knn;
+                };
+                break;
+            case "dc":
+                trainer = DocumentCategorizer::new;
+                break;
+            case "nb":
+                trainer = train -> {
+                    NaiveBayes nb = new NaiveBayes();
+                    nb.train(train);
+                    return nb;
+                };
+                break;
+            case "cascade":
+                trainer = train -> {
+                    NaiveBayes nb = new NaiveBayes();
+                    nb.train(train);
+                    if (escalateTo.toLowerCase().equals("dc")) {
+                        return new CascadeClassifier(nb, new DocumentCategorizer(train), band);
+                    }
+                    KNN knn = new KNN(train, kforKNN, termWeighting);
+                    knn.setApproximate(lshBands, lshRows);
+                    return new CascadeClassifier(nb, knn, band);
+                };
+                break;
+            default:
+                System.err.println("Unknown algorithm: " + algorithm);
+                return;
+        }
 
-            int count = 0;
-            for (int i = 0; i < subjectTokens.size(); i++) {
+        if (corpus.size() < crossValidationFolds) {
+            System.err.println("Cross-validation needs at least one message per fold.");
+            return;
+        }
+        new CrossValidation(trainer, crossValidationFolds).run(corpus, threads).printReport();
+    }
 
-                if (stopWords.contains(tkMessage.getSubjectTokens().get(i))) {
-                    count++;
-                    // DEBUG
-                    //System.out.println("REMOVING: " + subjectTokens.get(i));
-                    if (removeStopWords) subjectTokens.remove(i);
-                }
-            }
-            // Replace with pared down list.
-            tkMessage.setSubjectTokens(subjectTokens);
-            // DEBUG
-            //System.out.println("Removed " + count + " stop words from subject.");
-
-            count = 0;
-            for (int i = 0; i < bodyTokens.size(); i++) {
-
-                if (stopWords.contains(bodyTokens.get(i))) {
-                    count++;
-                    // DEBUG
-                    //System.out.println("REMOVING: " + bodyTokens.get(i));
-                    if (removeStopWords) bodyTokens.remove(i);
+    /**
+     * Classify the messages read from standard input and write one line per
+     * message to standard output: name, label and spam score, tab separated.
+     * Messages are wrangled on worker threads and results are written and
+     * flushed a batch at a time, in the order of the stream.
+     * @param scorer spam scores of a batch of messages
+     * @param pool pool to wrangle batches on, or null for the calling thread
+     */
+    private void classifyStream(Function<List<TokenizedMessage>, double[]> scorer, ForkJoinPool pool) {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        try (MessageStreamReader reader = new MessageStreamReader(
+                new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+
+            List<Message> batch = new ArrayList<>();
+            Message message;
+            while ((message = reader.next()) != null) {
+                batch.add(message);
+                if (batch.size() >= streamBatch) {
+                    classifyBatch(batch, scorer, pool, out);
+                    batch.clear();
                 }
             }
-            // Replace with pared down list.
-            tkMessage.setBodyTokens(bodyTokens);
-            // DEBUG
-            //System.out.println("Removed " + count + " stop words from body.");
+            classifyBatch(batch, scorer, pool, out);
+        } catch (IOException ex) {
+            System.err.println(ex);
         }
+    }
 
+    /**
+     * Wrangle and classify a batch of streamed messages, then write and
+     * flush their results.
+     * @param batch messages
+     * @param scorer spam scores of a batch of messages
+     * @param pool pool to wrangle the batch on, or null for the calling thread
+     * @param out output
+     */
+    private void classifyBatch(List<Message> batch, Function<List<TokenizedMessage>, double[]> scorer,
+                               ForkJoinPool pool, PrintWriter out) {
+        if (batch.isEmpty()) {
+            return;
+        }
 
-        //=======================+
-        //     TODO Stemming     |
-        //=======================+
-
-
-        //=============================+
-        //     TODO TERM WEIGHTING     |
-        //=============================+
+        TokenizedMessage[] wrangled = new TokenizedMessage[batch.size()];
+        Parallel.forEachIndex(pool, batch.size(), i -> wrangled[i] = wranglePipeline.apply(batch.get(i)));
 
-        return wrangledMessages;
+        double[] scores = scorer.apply(Arrays.asList(wrangled));
+        for (int i = 0; i < scores.length; i++) {
+            out.printf(Locale.ROOT, "%s\t%s\t%.4f%n", batch.get(i).getFILE_NAME(),
+                    (scores[i] > 0.5) ? "spam" : "ham", scores[i]);
+        }
+        out.flush();
     }
 
     /**
-     * Create list of classifier.messagetypes.Message objects from directory of text files.
+     * Create list of wrangled messages from directory of text files.
+     * Files are read and wrangled on worker threads as the directory is walked.
      * @param fullPathToData full path to the directory
-     * @return list of classifier.messagetypes.Message objects
+     * @return list of wrangled messages in directory order
      */
-    private ArrayList<Message> loadData(Path fullPathToData) {
-        // Create list to store messages.
-        ArrayList<Message> messages = new ArrayList<>();
-
-        // Get handle to directory, create message objects from files
-        // and add to training messages list.
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(fullPathToData)) {
-            // Add messages to messages ArrayList.
-            for (Path file: stream) {
-                messages.add(new Message(file, StandardCharsets.UTF_8));
-            }
-
-            // DEBUG
-            //for (classifier.messagetypes.Message message : messages) {
-            //    System.out.println(message);
-            //}
-        } catch (IOException | DirectoryIteratorException ex) {
-            // IOException can never be thrown by the iteration.
-            // In this snippet, it can only be thrown by newDirectoryStream.
-            System.err.println(ex);
-        }
-
-        return messages;
+    private List<TokenizedMessage> loadData(Path fullPathToData) {
+        return new CorpusLoader(threads).load(fullPathToData, wranglePipeline);
     }
 }
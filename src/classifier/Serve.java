@@ -0,0 +1,69 @@
+package classifier;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.function.Function;
+
+import classifier.messagetypes.TokenizedMessage;
+import classifier.server.ScoringServer;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+
+
+/**
+ * The serve subcommand: train or load a model once with the options of
+ * Classify, then classify messages posted to a local HTTP endpoint until
+ * the process is stopped.
+ */
+@Command(name = "serve", mixinStandardHelpOptions = true,
+        description = "Train or load the model once, then classify messages posted to "
+                + "http://HOST:PORT/classify. Uses the options given before serve.")
+public class Serve implements Runnable {
+
+    @ParentCommand
+    private Classify classify;
+
+    @Option(names = {"--host"}, description = "Address to listen on.")
+    private String host = "127.0.0.1";
+
+    @Option(names = {"--port"}, description = "Port to listen on.")
+    private int port = 8025;
+
+    @Option(names = {"--batch"}, description = "Maximum number of messages classified together.")
+    private int batchSize = 32;
+
+    @Option(names = {"--batchWait"},
+            description = "Longest time in milliseconds a worker waits for a batch to fill.")
+    private long batchWaitMillis = 2;
+
+    @Override
+    public void run() {
+
+        if (!classify.setUp()) {
+            return;
+        }
+
+        // Train or load once. Each worker scores one batch at a time.
+        Function<List<TokenizedMessage>, double[]> scorer =
+                classify.buildScorer(classify.loadTrainingData(), null);
+        if (scorer == null) {
+            return;
+        }
+
+        ScoringServer server = new ScoringServer(scorer, classify.getWranglePipeline(),
+                classify.getThreads(), batchSize, batchWaitMillis);
+        try {
+            server.start(new InetSocketAddress(host, port));
+        } catch (IOException ex) {
+            System.err.println(ex);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+
+        InetSocketAddress address = server.getAddress();
+        System.out.println("Serving " + classify.getAlgorithm() + " on http://"
+                + address.getHostString() + ":" + address.getPort() + "/classify");
+    }
+}
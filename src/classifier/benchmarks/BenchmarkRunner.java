@@ -0,0 +1,213 @@
+package classifier.benchmarks;
+
+import java.lang.management.ManagementFactory;
+
+
+/**
+ * Minimal benchmark harness in the spirit of JMH.
+ *
+ * An operation is run in warmup iterations, so the JIT compiles it, then in
+ * measurement iterations of a fixed duration each. Throughput and average
+ * latency are taken over the measurement iterations and allocation is read
+ * from the thread's allocation counter, the figure JMH's gc profiler reports
+ * as gc.alloc.rate.norm. Operations run on the calling thread only.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * A benchmarked operation.
+     */
+    public interface Operation {
+
+        /**
+         * Run the operation once.
+         * @param invocation number of the invocation within the iteration,
+         *                   e.g. to pick the next message
+         * @return a result, consumed so the work can't be optimized away
+         */
+        Object run(int invocation);
+    }
+
+    /**
+     * Measurements of one operation.
+     */
+    public static class Result {
+
+        private final String stage;
+        private final String corpus;
+        private final double opsPerSecond;
+        private final double opsPerSecondError;
+        private final double averageLatencyNanos;
+        private final double bytesPerOp;
+        private final double allocationRate;
+
+        Result(String stage, String corpus, double opsPerSecond, double opsPerSecondError,
+               double averageLatencyNanos, double bytesPerOp, double allocationRate) {
+            this.stage = stage;
+            this.corpus = corpus;
+            this.opsPerSecond = opsPerSecond;
+            this.opsPerSecondError = opsPerSecondError;
+            this.averageLatencyNanos = averageLatencyNanos;
+            this.bytesPerOp = bytesPerOp;
+            this.allocationRate = allocationRate;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public String getCorpus() {
+            return corpus;
+        }
+
+        /**
+         * @return operations per second
+         */
+        public double getOpsPerSecond() {
+            return opsPerSecond;
+        }
+
+        /**
+         * @return standard deviation of the operations per second of the iterations
+         */
+        public double getOpsPerSecondError() {
+            return opsPerSecondError;
+        }
+
+        /**
+         * @return average time per operation in nanoseconds
+         */
+        public double getAverageLatencyNanos() {
+            return averageLatencyNanos;
+        }
+
+        /**
+         * @return bytes allocated per operation
+         */
+        public double getBytesPerOp() {
+            return bytesPerOp;
+        }
+
+        /**
+         * @return megabytes allocated per second
+         */
+        public double getAllocationRate() {
+            return allocationRate;
+        }
+    }
+
+    /**
+     * Sink for operation results.
+     */
+    private static volatile Object sink;
+
+    /**
+     * Thread allocation counter of the HotSpot JVM.
+     */
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final int warmupIterations;
+
+    private final int measurementIterations;
+
+    private final long iterationNanos;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor.
+     * @param warmupIterations number of unmeasured iterations
+     * @param measurementIterations number of measured iterations
+     * @param iterationMillis duration of each iteration in milliseconds
+     */
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = Math.max(1, measurementIterations);
+        this.iterationNanos = iterationMillis * 1_000_000L;
+    }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Measure an operation. Each iteration runs the operation at least once.
+     * @param stage name of the operation
+     * @param corpus name of the corpus the operation runs on
+     * @param operation the operation
+     * @return the measurements
+     */
+    public Result measure(String stage, String corpus, Operation operation) {
+        return measure(stage, corpus, 1, operation);
+    }
+
+    /**
+     * Measure an operation that processes a batch of items, reporting
+     * figures per item so they compare with the unbatched operation.
+     * @param stage name of the operation
+     * @param corpus name of the corpus the operation runs on
+     * @param batchSize number of items one run of the operation processes
+     * @param operation the operation
+     * @return the measurements, per item
+     */
+    public Result measure(String stage, String corpus, int batchSize, Operation operation) {
+
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation, new long[3]);
+        }
+
+        long totalOps = 0;
+        long totalNanos = 0;
+        long totalBytes = 0;
+        double[] throughputs = new double[measurementIterations];
+        long[] measurement = new long[3];
+        for (int i = 0; i < measurementIterations; i++) {
+            iteration(operation, measurement);
+            totalOps += measurement[0] * batchSize;
+            totalNanos += measurement[1];
+            totalBytes += measurement[2];
+            throughputs[i] = measurement[0] * batchSize / (measurement[1] / 1e9);
+        }
+
+        double seconds = totalNanos / 1e9;
+        double opsPerSecond = totalOps / seconds;
+        double variance = 0.0;
+        for (double throughput : throughputs) {
+            variance += (throughput - opsPerSecond) * (throughput - opsPerSecond);
+        }
+        double error = Math.sqrt(variance / throughputs.length);
+
+        return new Result(stage, corpus, opsPerSecond, error, totalNanos / (double) totalOps,
+                totalBytes / (double) totalOps, totalBytes / seconds / 1e6);
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Run one iteration.
+     * @param operation the operation
+     * @param measurement receives the number of operations, nanoseconds and bytes allocated
+     */
+    private void iteration(Operation operation, long[] measurement) {
+        long threadId = Thread.currentThread().getId();
+        long startBytes = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long elapsed;
+        int ops = 0;
+        do {
+            sink = operation.run(ops++);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+
+        measurement[0] = ops;
+        measurement[1] = elapsed;
+        measurement[2] = THREADS.getThreadAllocatedBytes(threadId) - startBytes;
+    }
+}
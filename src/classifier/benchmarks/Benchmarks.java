@@ -0,0 +1,295 @@
+package classifier.benchmarks;
+
+import classifier.classifiers.core.KNN;
+import classifier.classifiers.core.NaiveBayes;
+import classifier.classifiers.experimental.CascadeClassifier;
+import classifier.classifiers.experimental.DocumentCategorizer;
+import classifier.evaluation.ConfusionMatrix;
+import classifier.evaluation.Evaluator;
+import classifier.messagetypes.Message;
+import classifier.messagetypes.TokenizedMessage;
+import classifier.utils.CorpusLoader;
+import classifier.utils.Tokenizer;
+import classifier.utils.WranglePipeline;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+
+/**
+ * Benchmark suite for the stages of classification: tokenization, the
+ * wrangle pipeline, KNN prediction, Naive Bayes training and prediction,
+ * one message at a time and in batches, Document Categorizer prediction,
+ * and cascades of Naive Bayes and KNN over a sweep of bands, on the
+ * bundled corpora and on synthetic corpora scaled from them.
+ *
+ * Example, every stage on the bundled corpora and 10 times their size:
+ * <pre>
+ *     java -cp classifier.jar classifier.benchmarks.Benchmarks --scales 1,10 ./data
+ * </pre>
+ */
+@Command(name = "classifier.benchmarks.Benchmarks", mixinStandardHelpOptions = true,
+        version = "Email Classifier 0.1.1")
+public class Benchmarks implements Runnable {
+
+    /**
+     * Names of the benchmarked stages.
+     */
+    public static final List<String> STAGES = Arrays.asList(
+            "tokenize", "wrangle", "knn.predict", "nb.train", "nb.predict", "nb.batch", "dc.predict", "cascade");
+
+    @Option(names = {"--stages"}, split = ",",
+            description = "Stages to measure: tokenize, wrangle, knn.predict, nb.train, nb.predict, "
+                    + "nb.batch, dc.predict, cascade.")
+    private List<String> stages = STAGES;
+
+    @Option(names = {"--scales"}, split = ",",
+            description = "Sizes of the corpora as multiples of the bundled corpora.")
+    private List<Integer> scales = Arrays.asList(1, 10, 100);
+
+    @Option(names = {"--warmup"}, description = "Number of warmup iterations.")
+    private int warmupIterations = 3;
+
+    @Option(names = {"--iterations"}, description = "Number of measurement iterations.")
+    private int measurementIterations = 5;
+
+    @Option(names = {"--time"}, description = "Duration of each iteration in milliseconds.")
+    private long iterationMillis = 1000;
+
+    @Option(names = {"--batch"}, description = "Number of messages per batch of nb.batch.")
+    private int batchSize = 256;
+
+    @Option(names = {"--band"},
+            description = "Band of the cascade stage, which sweeps from 0 through 4 times it to infinite.")
+    private double band = 1.0;
+
+    @Option(names = {"-k", "--k"}, description = "Number of nearest neighbors - the K in KNN.")
+    private int kforKNN = 3;
+
+    @Option(names = {"-t", "--threads"}, description = "Number of threads for loading messages.")
+    private int threads = 1;
+
+    @Option(names = {"--trainPath"}, description = "Path within data folder to training data.")
+    private String trainDataPath = "train";
+
+    @Option(names = {"--testPath"}, description = "Path within data folder to test data.")
+    private String testDataPath = "test";
+
+    @Parameters(arity = "1", paramLabel = "PATH",
+            description = "A single path to a directory containing training and testing sets.")
+    private Path inputPath;
+
+    /**
+     * Rows of the cascade table: per band, the decisions of the cascade.
+     */
+    private final List<String> cascadeRows = new ArrayList<>();
+
+    /**
+     * The main point of entry for the benchmarks.
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        CommandLine.run(new Benchmarks(), args);
+    }
+
+    @Override
+    public void run() {
+
+        for (String stage : stages) {
+            if (!STAGES.contains(stage)) {
+                System.err.println("Unknown stage: " + stage);
+                return;
+            }
+        }
+        if (!(band >= 0.0)) {
+            System.err.println("The cascade band must be at least 0.");
+            return;
+        }
+
+        // Raw messages, parsed once.
+        CorpusLoader loader = new CorpusLoader(threads);
+        List<Message> train = loader.load(Paths.get(inputPath.toString(), trainDataPath), Function.identity());
+        List<Message> test = loader.load(Paths.get(inputPath.toString(), testDataPath), Function.identity());
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmupIterations, measurementIterations, iterationMillis);
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+        for (int scale : scales) {
+            results.addAll(runScale(runner, SyntheticCorpus.scale(train, scale, 1),
+                    SyntheticCorpus.scale(test, scale, 2), scale + "x"));
+        }
+
+        printResults(results);
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Measure the selected stages on one pair of corpora.
+     * @param runner the harness
+     * @param train training messages
+     * @param test test messages
+     * @param corpus name of the corpora
+     * @return measurements, one per stage
+     */
+    private List<BenchmarkRunner.Result> runScale(BenchmarkRunner runner, List<Message> train,
+                                                  List<Message> test, String corpus) {
+        System.err.println("Corpus " + corpus + ": " + train.size() + " training, "
+                + test.size() + " test messages");
+
+        // Wrangled corpora, as Classify builds them.
+        WranglePipeline pipeline = new WranglePipeline().normalize();
+        WranglePipeline stopWordPipeline = new WranglePipeline().normalize().removeStopWords();
+        List<TokenizedMessage> tkTrain = pipeline.apply(train);
+        List<TokenizedMessage> tkTest = pipeline.apply(test);
+        int numTest = test.size();
+
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+        for (String stage : stages) {
+            System.err.println("  " + stage);
+            switch (stage) {
+                case "tokenize":
+                    results.add(runner.measure(stage, corpus,
+                            i -> Tokenizer.tokenize(test.get(i % numTest))));
+                    break;
+                case "wrangle":
+                    results.add(runner.measure(stage, corpus,
+                            i -> stopWordPipeline.apply(test.get(i % numTest))));
+                    break;
+                case "knn.predict":
+                    KNN knn = new KNN(tkTrain, kforKNN);
+                    results.add(runner.measure(stage, corpus,
+                            i -> knn.predict(tkTest.get(i % numTest))));
+                    break;
+                case "nb.train":
+                    // One operation trains on the whole corpus.
+                    results.add(runner.measure(stage, corpus, i -> {
+                        NaiveBayes nb = new NaiveBayes();
+                        nb.train(tkTrain);
+                        return nb;
+                    }));
+                    break;
+                case "nb.predict":
+                    NaiveBayes nb = new NaiveBayes();
+                    nb.train(tkTrain);
+                    results.add(runner.measure(stage, corpus,
+                            i -> nb.predict(tkTest.get(i % numTest))));
+                    break;
+                case "nb.batch":
+                    // Batches of test messages, reported per message.
+                    NaiveBayes batchNb = new NaiveBayes();
+                    batchNb.train(tkTrain);
+                    int size = Math.max(1, Math.min(batchSize, numTest));
+                    List<List<TokenizedMessage>> batches = new ArrayList<>();
+                    for (int from = 0; from + size <= numTest; from += size) {
+                        batches.add(tkTest.subList(from, from + size));
+                    }
+                    results.add(runner.measure(stage, corpus, size,
+                            i -> batchNb.predictBatch(batches.get(i % batches.size()))));
+                    break;
+                case "dc.predict":
+                    DocumentCategorizer dc = new DocumentCategorizer(tkTrain);
+                    results.add(runner.measure(stage, corpus,
+                            i -> dc.predict(tkTest.get(i % numTest))));
+                    break;
+                case "cascade":
+                    results.addAll(runCascade(runner, tkTrain, tkTest, corpus));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Measure the trade-off of latency and accuracy of cascades of Naive
+     * Bayes and KNN, with bands from 0, Naive Bayes alone, to infinite,
+     * KNN alone. Each band is measured scoring batches of test messages,
+     * reported per message, and its escalation rate, the share of
+     * escalated messages on the spam side of the decision boundary,
+     * accuracy and F1 go to the cascade table.
+     * @param runner the harness
+     * @param tkTrain training messages
+     * @param tkTest labeled test messages
+     * @param corpus name of the corpora
+     * @return measurements, one per band
+     */
+    private List<BenchmarkRunner.Result> runCascade(BenchmarkRunner runner, List<TokenizedMessage> tkTrain,
+                                                    List<TokenizedMessage> tkTest, String corpus) {
+        NaiveBayes nb = new NaiveBayes();
+        nb.train(tkTrain);
+        KNN knn = new KNN(tkTrain, kforKNN);
+
+        int size = Math.max(1, Math.min(batchSize, tkTest.size()));
+        List<List<TokenizedMessage>> batches = new ArrayList<>();
+        for (int from = 0; from + size <= tkTest.size(); from += size) {
+            batches.add(tkTest.subList(from, from + size));
+        }
+
+        double[] bands = {0.0, band / 4, band / 2, band, band * 2, band * 4, Double.POSITIVE_INFINITY};
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+        for (double b : bands) {
+            String label = (b == Double.POSITIVE_INFINITY) ? "inf" : String.format("%.2f", b);
+
+            // One pass for the decisions, counted before timing adds passes.
+            CascadeClassifier cascade = new CascadeClassifier(nb, knn, b);
+            ConfusionMatrix matrix = Evaluator.evaluate(cascade, tkTest, 1, null);
+            cascadeRows.add(String.format("| %-10s | %-6s | %9.4f | %9.4f | %8.4f | %8.4f |",
+                    label, corpus, cascade.getEscalationRate(), cascade.getSpamEscalationRate(),
+                    matrix.getAccuracy(), matrix.getF1()));
+
+            results.add(runner.measure("cascade " + label, corpus, size,
+                    i -> cascade.scoreBatch(batches.get(i % batches.size()))));
+        }
+        return results;
+    }
+
+    /**
+     * Print the measurements as a table.
+     * @param results the measurements
+     */
+    private void printResults(List<BenchmarkRunner.Result> results) {
+        System.out.println("BENCHMARKS");
+        System.out.println("==========");
+        System.out.println();
+        System.out.println("nb.train ops are trainings on the whole corpus, other ops are single messages.");
+        System.out.println();
+        System.out.println(String.format("| %-12s | %-6s | %24s | %14s | %14s | %12s |",
+                "Stage", "Corpus", "Throughput (ops/s)", "Latency (us)", "Alloc (B/op)", "Alloc (MB/s)"));
+        System.out.println("|--------------|--------|--------------------------|"
+                + "----------------|----------------|--------------|");
+        for (BenchmarkRunner.Result result : results) {
+            System.out.println(String.format("| %-12s | %-6s | %12.1f +- %8.1f | %14.2f | %14.0f | %12.1f |",
+                    result.getStage(), result.getCorpus(), result.getOpsPerSecond(),
+                    result.getOpsPerSecondError(), result.getAverageLatencyNanos() / 1e3,
+                    result.getBytesPerOp(), result.getAllocationRate()));
+        }
+
+        if (!cascadeRows.isEmpty()) {
+            System.out.println();
+            System.out.println("CASCADE");
+            System.out.println("=======");
+            System.out.println();
+            System.out.println(String.format("| %-10s | %-6s | %9s | %9s | %8s | %8s |",
+                    "Band", "Corpus", "Escalated", "Spam side", "Accuracy", "F1"));
+            System.out.println("|------------|--------|-----------|-----------|----------|----------|");
+            for (String row : cascadeRows) {
+                System.out.println(row);
+            }
+            System.out.println();
+            System.out.println("Band 0 is Naive Bayes alone, inf KNN alone.");
+            System.out.println("Spam side is the fraction of escalated messages Naive Bayes calls spam.");
+        }
+    }
+}
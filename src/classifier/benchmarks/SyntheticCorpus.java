@@ -0,0 +1,90 @@
+package classifier.benchmarks;
+
+import classifier.messagetypes.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+
+/**
+ * Synthetic corpora scaled up from a real one.
+ *
+ * Each copy of a message keeps its label and its text, except that some
+ * tokens get a suffix unique to the copy, so the vocabulary grows with the
+ * corpus the way it does with real mail instead of staying fixed.
+ */
+public class SyntheticCorpus {
+
+    /**
+     * Fraction of tokens rewritten in each copy.
+     */
+    private static final double MUTATION_RATE = 0.15;
+
+    private SyntheticCorpus() { }
+
+
+    //---------------------------------+
+    //     PUBLIC STATCIC METHODS     /
+    //-------------------------------+
+
+    /**
+     * Scale a corpus.
+     * @param messages the corpus
+     * @param factor number of copies of each message, 1 for the corpus itself
+     * @param seed random seed, so corpora are repeatable
+     * @return the scaled corpus, copies of each message in turn
+     */
+    public static List<Message> scale(List<Message> messages, int factor, long seed) {
+        if (factor <= 1) { return messages; }
+
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Message> scaled = new ArrayList<>(messages.size() * factor);
+        for (int copy = 0; copy < factor; copy++) {
+            for (Message message : messages) {
+                if (copy == 0) {
+                    scaled.add(message);
+                    continue;
+                }
+
+                Message synthetic = new Message();
+                synthetic.setSpam(message.isSpam());
+                synthetic.setSubject(mutate(message.getSubject(), copy, random));
+                List<String> body = new ArrayList<>(message.getBody().size());
+                for (String line : message.getBody()) {
+                    body.add(mutate(line, copy, random));
+                }
+                synthetic.setBody(body);
+                scaled.add(synthetic);
+            }
+        }
+        return scaled;
+    }
+
+
+    //---------------------------------+
+    //     PRIVATE STATIC METHODS     /
+    //-------------------------------+
+
+    /**
+     * Suffix some of the space separated tokens of a line with the copy number.
+     */
+    private static String mutate(String line, int copy, SplittableRandom random) {
+        if (line == null || line.isEmpty()) { return line; }
+
+        StringBuilder mutated = new StringBuilder(line.length() + 16);
+        int start = 0;
+        while (start <= line.length()) {
+            int end = line.indexOf(' ', start);
+            if (end < 0) { end = line.length(); }
+
+            mutated.append(line, start, end);
+            if (end > start && random.nextDouble() < MUTATION_RATE) {
+                mutated.append('_').append(copy);
+            }
+            if (end < line.length()) { mutated.append(' '); }
+            start = end + 1;
+        }
+        return mutated.toString();
+    }
+}
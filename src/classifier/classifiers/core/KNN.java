@@ -2,9 +2,20 @@ package classifier.classifiers.core;
 
 import classifier.classifiers.interfaces.GenericClassifier;
 import classifier.messagetypes.TokenizedMessage;
+import classifier.utils.IdfTable;
+import classifier.utils.Parallel;
+import classifier.utils.TermWeighting;
+import classifier.utils.TopKSelector;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 // TODO Create a Classifier base class?
@@ -15,18 +26,106 @@ import java.util.stream.Collectors;
  */
 public class KNN implements GenericClassifier {
 
+    /**
+     * The index is rebuilt once more than one in COMPACT_RATIO of its
+     * messages have been learned or forgotten since it was built.
+     */
+    private static final int COMPACT_RATIO = 8;
+
     /**
      * The k for KNN.
      */
     private int kforKNN;
 
     /**
-     * List of wrangled training messages passed during
-     * instatiation. These messages are used for
-     * comparison to test messages.
+     * List of wrangled training messages passed during instatiation, or
+     * the messages the index was last rebuilt from, or null if the index
+     * was loaded from a file.
      */
     private List<TokenizedMessage> tokenizedTrainMessages;
 
+    /**
+     * Term id vectors and labels of the training messages, with the
+     * inverted index from term id to the training messages containing it.
+     * Only training messages sharing at least one token with a test
+     * message need to be scored.
+     */
+    private KNNIndex index;
+
+    /**
+     * MinHash buckets of the training messages for approximate search,
+     * or null for exact search.
+     */
+    private MinHashLSH lsh;
+
+    /**
+     * Messages learned since the index was built, in learning order. They
+     * are scored by merging their vectors with the query's.
+     */
+    private final List<Learned> learned = new ArrayList<>();
+
+    /**
+     * Ids of the indexed messages forgotten since the index was built,
+     * skipped when scoring.
+     */
+    private final BitSet forgotten = new BitSet();
+
+    // Scoring holds the read lock, learning and forgetting the write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Scratch space of one thread for finding neighbors, see Scratch.
+     */
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * A message learned since the index was built, with its vector weighted
+     * by the document frequencies when it was learned.
+     */
+    private static final class Learned {
+
+        private final TokenizedMessage message;
+
+        private final boolean spam;
+
+        private final IntBuffer termIds;
+
+        /**
+         * Weights parallel to termIds, or null if every weight is 1.
+         */
+        private final DoubleBuffer weights;
+
+        private final double norm;
+
+        private Learned(TokenizedMessage message, boolean spam, int[] termIds, double[] weights) {
+            this.message = message;
+            this.spam = spam;
+            this.termIds = IntBuffer.wrap(termIds);
+            this.weights = (weights == null) ? null : DoubleBuffer.wrap(weights);
+            this.norm = (weights == null) ? KNNIndex.unweightedNorm(termIds.length) : KNNIndex.norm(weights);
+        }
+    }
+
+    /**
+     * Scratch space for finding neighbors, allocated once per thread: the
+     * similarity accumulator, the ids of the training messages it touched,
+     * so only those are read and zeroed again, the neighbor heap, and the
+     * candidates of approximate search with the query weights by term id
+     * to re-rank them, grown when first needed.
+     */
+    private final class Scratch {
+
+        private final double[] dotProducts = new double[index.size()];
+
+        private final int[] touched = new int[index.size()];
+
+        private final TopKSelector topKs = new TopKSelector(kforKNN);
+
+        private final MinHashLSH.Candidates candidates = new MinHashLSH.Candidates(index.size());
+
+        private double[] queryWeights = new double[0];
+    }
+
     //---------------------+
     //    CONSTRUCTORS    /
     //-------------------+
@@ -39,13 +138,36 @@ public class KNN implements GenericClassifier {
      * @param k k for knn
      */
     public KNN(List<TokenizedMessage> tokenizedMessages, int k) {
+        this(tokenizedMessages, k, TermWeighting.NONE);
+    }
+
+    /**
+     * KNN Classifier for tokenized messages with weighted term vectors.
+     * The document frequencies for weighting are counted over the
+     * training messages once and also weigh the test messages.
+     * @param tokenizedMessages a classifier.messagetypes.TokenizedMessage
+     * @param k k for knn
+     * @param weighting term weighting, e.g. TermWeighting.BM25
+     */
+    public KNN(List<TokenizedMessage> tokenizedMessages, int k, TermWeighting weighting) {
 
         // Set the k.
         this.kforKNN = k;
 
-        // Vector similarity w/o weighting.
-
         this.tokenizedTrainMessages = tokenizedMessages;
+
+        // Build the inverted index of weighted vectors.
+        this.index = new KNNIndex(tokenizedMessages, weighting);
+    }
+
+    /**
+     * KNN Classifier over an index loaded from a file.
+     * @param index the index
+     * @param k k for knn
+     */
+    private KNN(KNNIndex index, int k) {
+        this.kforKNN = k;
+        this.index = index;
     }
 
 
@@ -60,191 +182,535 @@ public class KNN implements GenericClassifier {
      * @return the label - true if spam
      */
     public boolean predict(TokenizedMessage tkTestMessage) {
+        return score(tkTestMessage) > 0.5;
+    }
 
-        // Map for storing similarities.
-        Map<String, Double> similarities = new HashMap<>();
-
-        // Calculate similarity with all train messages.
-        for (TokenizedMessage tkTrainMessage : tokenizedTrainMessages) {
-            double similarity = similarity(tkTestMessage, tkTrainMessage);
-            similarities.put(tkTrainMessage.getFILE_NAME(), similarity);
+    /**
+     * Spam score of a message: the fraction of the k most-similar
+     * training messages that are spam.
+     * @param tkTestMessage a classifier.messagetypes.TokenizedMessage
+     * @return spam score
+     */
+    @Override
+    public double score(TokenizedMessage tkTestMessage) {
+        lock.readLock().lock();
+        try {
+            return score(tkTestMessage, scratch());
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        // DEBUG
-        //System.out.println(similarities);
-
-        // Find the k most-similar messages.
-        // Sort in descending order by similarity.
-        // Get top k from map.
-        Map<String, Double> topKs = similarities.entrySet().stream()
-                        .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                        .limit(kforKNN)
-                        .collect(Collectors.toMap(
-                                Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
-
-        // Threshold for label.
-        // Leaving this as an int ensures it will automatically
-        // floor, so classification is always decisive for odd k.
-        int labelThreshold = kforKNN / 2;
-        int votesForSpam = 0;
-        boolean isSpam = false;
-
-        // DEBUG
-        //System.out.println("Top k similarities: ");
-        Iterator it = topKs.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry pair = (Map.Entry)it.next();
-
-            // Count number of votes for spam.
-            if (pair.getKey().toString().charAt(0) == 's') {
-                votesForSpam++;
+    /**
+     * Spam scores of a batch of messages, sharing this thread's scratch
+     * space across the batch.
+     * @param tkMessages list of tokenized messages
+     * @return spam scores in the order of the list
+     */
+    @Override
+    public double[] scoreBatch(List<TokenizedMessage> tkMessages) {
+        double[] scores = new double[tkMessages.size()];
+        lock.readLock().lock();
+        try {
+            Scratch threadScratch = scratch();
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = score(tkMessages.get(i), threadScratch);
             }
-
-            // DEBUG
-            //System.out.println("  " + pair.getKey() + " = " + pair.getValue());
+        } finally {
+            lock.readLock().unlock();
         }
+        return scores;
+    }
 
-        // DEBUG
-        //System.out.println("Votes for spam: " + votesForSpam);
-        //System.out.println("Label threshold: " + labelThreshold);
+    /**
+     * Learns one more message, e.g. when a user marks a message as spam.
+     * The message's terms are counted into the document frequencies, which
+     * weigh the queries from then on, and its vector is scored along with
+     * the index, so this costs O(tokens in message). Once more than one in
+     * COMPACT_RATIO messages have been learned or forgotten, the index is
+     * rebuilt from its messages, reweighing them by the current frequencies.
+     * @param message message object with tokens to learn
+     * @param spam true to learn the message as spam, false as ham
+     * @throws IllegalStateException if the index was loaded from a file
+     */
+    public void update(TokenizedMessage message, boolean spam) {
+        lock.writeLock().lock();
+        try {
+            requireTrainMessages();
+            IdfTable idfTable = index.idfTable();
+            idfTable.add(message);
+            double[] weights = (index.weighting() == TermWeighting.NONE) ? null
+                    : idfTable.weigh(index.weighting(), message.getTermIds(), message.getTermCounts());
+            learned.add(new Learned(message, spam, message.getTermIds(), weights));
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        // The label that appears most among the k most similar messages
-        // is the label returned.
-        if (votesForSpam > labelThreshold) { isSpam = true; }
+    /**
+     * Unlearns a message previously trained on or learned with the same
+     * label: the last one with the same tokens and counts. Its terms are
+     * removed from the document frequencies, and it is skipped until the
+     * index is rebuilt. Finding it costs O(messages).
+     * @param message message object with tokens to unlearn
+     * @param spam the label the message was learned with - true if spam
+     * @throws IllegalArgumentException if no such message was learned with this label
+     * @throws IllegalStateException if the index was loaded from a file
+     */
+    public void forget(TokenizedMessage message, boolean spam) {
+        lock.writeLock().lock();
+        try {
+            requireTrainMessages();
+
+            // Tokens unknown to the vocabulary can't have been learned.
+            int[] termIds = message.getQueryTermIds();
+            int[] termCounts = message.getQueryTermCounts();
+            for (int t = learned.size() - 1; t >= 0; t--) {
+                Learned learnedMessage = learned.get(t);
+                if (learnedMessage.spam == spam && isSame(learnedMessage.message, termIds, termCounts)) {
+                    index.idfTable().remove(learnedMessage.message);
+                    learned.remove(t);
+                    compactIfNeeded();
+                    return;
+                }
+            }
+            for (int trainId = index.size() - 1; trainId >= 0; trainId--) {
+                TokenizedMessage trainMessage = tokenizedTrainMessages.get(trainId);
+                if (!forgotten.get(trainId) && index.isSpam(trainId) == spam
+                        && isSame(trainMessage, termIds, termCounts)) {
+                    index.idfTable().remove(trainMessage);
+                    forgotten.set(trainId);
+                    compactIfNeeded();
+                    return;
+                }
+            }
+            throw new IllegalArgumentException(message.getFILE_NAME()
+                    + " was not learned as " + (spam ? "spam" : "ham"));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        // Debug
-        //System.out.println("Label: " + isSpam);
+    /**
+     * Search approximately: only training messages whose MinHash signature
+     * shares a bucket with the test message in at least one band are
+     * scored. More bands find more of the exact neighbors, more rows
+     * score fewer candidates. A message with fewer than k candidates is
+     * searched exactly, as its missing neighbors would vote for ham.
+     * @param bands number of bands, 0 for exact search
+     * @param rows number of min-hashes per band
+     */
+    public void setApproximate(int bands, int rows) {
+        lock.writeLock().lock();
+        try {
+            this.lsh = (bands > 0) ? new MinHashLSH(index, bands, rows) : null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        return isSpam;
+    /**
+     * @return true if searching approximately
+     */
+    public boolean isApproximate() {
+        return lsh != null;
     }
 
-    public void predictDataSet(List<TokenizedMessage> tkMessages) {
+    /**
+     * Measure the approximate search against the exact search on a list of
+     * messages, print report. Recall is the fraction of the exact k nearest
+     * neighbors the approximate search also finds, including messages
+     * searched exactly for lack of candidates. Both search the index only,
+     * not the messages learned since it was built.
+     * @param tkMessages list of tokenized messages
+     * @param threads number of threads to search on
+     */
+    public void printApproximateReport(List<TokenizedMessage> tkMessages, int threads) {
+        lock.readLock().lock();
+        try {
+            printApproximateReportLocked(tkMessages, threads);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-        int totalNum = 0;
-        int numActualTrue = 0;
-        int numActualFalse = 0;
-        int numTP = 0;
-        int numTN = 0;
-        int numFP = 0;
-        int numFN = 0;
-        double nullErrorRate;
+    /**
+     * Save the index of the training messages to a file, so it can be
+     * loaded without reading or tokenizing the training messages again.
+     * Messages learned or forgotten since the index was built are saved
+     * by rebuilding it first.
+     * @param file file to write
+     * @throws IOException if the file can't be written
+     */
+    public void save(Path file) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!learned.isEmpty() || !forgotten.isEmpty()) {
+                compact();
+            }
+            index.write(file);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        System.out.println("============================================");
-        for (TokenizedMessage tkTestkMsg : tkMessages) {
-            // Predict label of test message.
-            boolean label = predict(tkTestkMsg);
 
-            // Count total number of messages classified.
-            totalNum++;
+    //-------------------------------+
+    //    PUBLIC STATIC METHODS     /
+    //-----------------------------+
 
-            // Count actual labels.
-            if (tkTestkMsg.isSpam()) {
-                numActualTrue++;
-            } else {
-                numActualFalse++;
-            }
+    /**
+     * Load a classifier from an index saved with save(). The file is
+     * memory-mapped, so loading takes about the same time for any size.
+     * @param file file to read
+     * @param k k for knn
+     * @return the classifier
+     * @throws IOException if the file can't be read or is not an index
+     */
+    public static KNN load(Path file, int k) throws IOException {
+        return new KNN(KNNIndex.map(file), k);
+    }
 
-            String isCorrect = null;
+    //------------------------+
+    //    PRIVATE METHODS    /
+    //----------------------+
 
-            // Count correct/incorrect predictions,
-            // and catch TP, TN, FP, FN while at it.
-            if (label == tkTestkMsg.isSpam()) {
-                isCorrect = "correct";
+    /**
+     * See printApproximateReport(). Must hold the read lock.
+     * @param tkMessages list of tokenized messages
+     * @param threads number of threads to search on
+     */
+    private void printApproximateReportLocked(List<TokenizedMessage> tkMessages, int threads) {
+        if (lsh == null) {
+            throw new IllegalStateException("Approximate search is not enabled.");
+        }
 
-                if (label) {
-                    numTP++;
-                } else {
-                    numTN++;
-                }
-            } else {
-                isCorrect = "INCORRECT";
+        KNNIndex.Query[] queries = new KNNIndex.Query[tkMessages.size()];
+        Parallel.forEachIndex(queries.length, threads, i -> queries[i] = index.query(tkMessages.get(i)));
+
+        // Exact and approximate neighbors. Both searches run twice and the
+        // second pass is timed, so neither is timed while being compiled.
+        int[][] exactNeighbors = new int[queries.length][];
+        int[][] approximateNeighbors = new int[queries.length][];
+        LongAdder candidateCount = new LongAdder();
+        LongAdder fallbackCount = new LongAdder();
+        long exactNanos = 0;
+        long approximateNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            Parallel.forEachIndex(queries.length, threads,
+                    i -> exactNeighbors[i] = neighborIds(nearestNeighbors(queries[i], null, scratch())));
+            exactNanos = System.nanoTime() - start;
+
+            candidateCount.reset();
+            fallbackCount.reset();
+            start = System.nanoTime();
+            Parallel.forEachIndex(queries.length, threads, i -> {
+                Scratch threadScratch = scratch();
+                MinHashLSH.Candidates candidates = candidates(queries[i], threadScratch);
+                candidateCount.add(threadScratch.candidates.size());
+                if (candidates == null) { fallbackCount.increment(); }
+                approximateNeighbors[i] = neighborIds(nearestNeighbors(queries[i], candidates, threadScratch));
+            });
+            approximateNanos = System.nanoTime() - start;
+        }
 
-                if (label) {
-                    numFP++;
-                } else {
-                    numFN++;
+        // Recall of the exact neighbors.
+        int numExact = 0;
+        int numFound = 0;
+        for (int i = 0; i < queries.length; i++) {
+            for (int trainId : exactNeighbors[i]) {
+                numExact++;
+                if (Arrays.binarySearch(approximateNeighbors[i], trainId) >= 0) {
+                    numFound++;
                 }
             }
+        }
+        double candidatesPerMessage = candidateCount.sum() / (double) Math.max(1, queries.length);
 
-            // Print stats.
-            System.out.print(String.format("| %-16s | %8s | %10s |\n", tkTestkMsg.getFILE_NAME(), label, isCorrect));
+        System.out.println();
+        System.out.println("APPROXIMATE SEARCH");
+        System.out.println("==================");
+        System.out.println();
+        System.out.println(String.format("%-25s %d x %d", "Bands x Rows: ", lsh.getBands(), lsh.getRows()));
+        System.out.println(String.format("%-25s %f", "Recall@" + kforKNN + ": ",
+                (numExact == 0) ? 1.0 : numFound / (double) numExact));
+        System.out.println(String.format("%-25s %.1f of %d", "Candidates per Message: ",
+                candidatesPerMessage, index.size()));
+        System.out.println(String.format("%-25s %d (%.1f%%)", "Exact Fallbacks: ", fallbackCount.sum(),
+                100.0 * fallbackCount.sum() / Math.max(1, queries.length)));
+        System.out.println(String.format("%-25s %.3f", "Exact Search (ms): ", exactNanos / 1e6));
+        System.out.println(String.format("%-25s %.3f", "Approximate Search (ms): ", approximateNanos / 1e6));
+    }
+
+    /**
+     * @throws IllegalStateException if the training messages are not kept
+     */
+    private void requireTrainMessages() {
+        if (tokenizedTrainMessages == null) {
+            throw new IllegalStateException("A KNN loaded from an index file can't learn or forget messages.");
         }
-        System.out.println("============================================\n");
-
-        // Calculate null error rate.
-        String majClass = null;
-        if (numActualTrue > numActualFalse) {
-            // spam = true is the majority class.
-            majClass = "true";
-            nullErrorRate = numActualFalse / (double) totalNum;
-        } else {
-            // spam = false is the majority class.
-            majClass = "false";
-            nullErrorRate = numActualTrue / (double) totalNum;
+    }
+
+    /**
+     * @param message a learned message
+     * @param termIds ascending term ids
+     * @param termCounts counts parallel to termIds
+     * @return true if the message has exactly these terms and counts
+     */
+    private static boolean isSame(TokenizedMessage message, int[] termIds, int[] termCounts) {
+        return Arrays.equals(message.getTermIds(), termIds) && Arrays.equals(message.getTermCounts(), termCounts);
+    }
+
+    /**
+     * Rebuild the index if more than one in COMPACT_RATIO of its messages
+     * have been learned or forgotten since it was built.
+     * Must hold the write lock.
+     */
+    private void compactIfNeeded() {
+        if (learned.size() + forgotten.cardinality() > index.size() / COMPACT_RATIO) {
+            compact();
         }
+    }
 
-        //-------------------------------------+
-        //    PRODUCE REPORT OF THE THINGS    /
-        //-----------------------------------+
+    /**
+     * Rebuild the index from the indexed messages not forgotten and the
+     * learned messages, in that order, with their labels. The document
+     * frequencies are counted again and every vector is reweighed by them.
+     * Must hold the write lock.
+     */
+    private void compact() {
+        List<TokenizedMessage> messages = new ArrayList<>(index.size() + learned.size());
+        boolean[] spam = new boolean[index.size() - forgotten.cardinality() + learned.size()];
+        for (int trainId = 0; trainId < index.size(); trainId++) {
+            if (forgotten.get(trainId)) { continue; }
+            spam[messages.size()] = index.isSpam(trainId);
+            messages.add(tokenizedTrainMessages.get(trainId));
+        }
+        for (Learned learnedMessage : learned) {
+            spam[messages.size()] = learnedMessage.spam;
+            messages.add(learnedMessage.message);
+        }
 
-        // Print confusion matrix.
-        System.out.println("CONFUSION MATRIX");
-        System.out.println("================");
-        System.out.println();
-        System.out.println(String.format("  %-8s   %8s   %8s", "", "Spam", "Not Spam"));
-        System.out.println("==================================");
-        System.out.println(String.format("| %-8s | %8s | %8s |" , "Spam", "TP " + numTP, "FP " + numFP));
-        System.out.println("+================================+");
-        System.out.println(String.format("| %-8s | %8s | %8s |" , "Not Spam", "FN " + numFN, "TN " + numTN));
-        System.out.println("==================================");
+        index = new KNNIndex(messages, spam, index.weighting());
+        tokenizedTrainMessages = messages;
+        learned.clear();
+        forgotten.clear();
+        if (lsh != null) {
+            lsh = new MinHashLSH(index, lsh.getBands(), lsh.getRows());
+        }
+    }
 
-        System.out.println();
+    /**
+     * This thread's scratch space, reallocated if the index was rebuilt
+     * with a different number of messages.
+     * @return the scratch space
+     */
+    private Scratch scratch() {
+        Scratch threadScratch = scratch.get();
+        if (threadScratch.dotProducts.length != index.size()) {
+            threadScratch = new Scratch();
+            scratch.set(threadScratch);
+        }
+        return threadScratch;
+    }
 
-        System.out.println("STATISTICS");
-        System.out.println("==========");
-        System.out.println();
-        System.out.println(String.format("%-25s %d", "Messages Classified: ", totalNum));
-        System.out.println(String.format("%-25s %d", "Correct Predictions: ", (numTP + numTN)));
-        System.out.println(String.format("%-25s %d", "Incorrect Predictions: ", (numFP + numFN)));
-        System.out.println(String.format("%-25s %f", "Accuracy: ", ((numTP + numTN) / (double) totalNum)));
-        System.out.println(String.format("%-25s %f", "Misclassification: ", (numFP + numFN) / (double) totalNum));
-        System.out.println(String.format("%-25s %f", "Precision: ", numTP / (double) (numTP + numFP)));
-        System.out.println(String.format("%-25s %f", "Recall: ", numTP / (double) (numTP + numFN)));
-        System.out.println(String.format("%-25s %f", "Null Error Rate (Majority " + majClass + "): ", nullErrorRate));
+    /**
+     * @param trainId id of an indexed message, or the index size plus
+     *                the position of a learned message
+     * @return true if the message is spam
+     */
+    private boolean isSpam(int trainId) {
+        return (trainId < index.size()) ? index.isSpam(trainId) : learned.get(trainId - index.size()).spam;
     }
 
+    /**
+     * Spam score of a message: the fraction of its k most-similar
+     * training messages that are spam.
+     * @param tkTestMessage the message
+     * @param threadScratch this thread's scratch space
+     * @return spam score
+     */
+    private double score(TokenizedMessage tkTestMessage, Scratch threadScratch) {
+
+        // Find the k most-similar training messages.
+        KNNIndex.Query query = index.query(tkTestMessage);
+        TopKSelector topKs = nearestNeighbors(query, candidates(query, threadScratch), threadScratch);
+
+        // Messages learned since the index was built follow the indexed ones.
+        for (int t = 0; t < learned.size(); t++) {
+            Learned learnedMessage = learned.get(t);
+            double dotProduct = KNNIndex.dot(query.termIds, query.weights, learnedMessage.termIds,
+                    learnedMessage.weights, 0, learnedMessage.termIds.limit());
+            if (dotProduct == 0.0) { continue; }
+            topKs.offer(index.size() + t, dotProduct / (query.norm * learnedMessage.norm));
+        }
 
-    //------------------------+
-    //    PRIVATE METHODS    /
-    //----------------------+
+        // The label that appears most among the k most similar messages
+        // is the label predicted, so the threshold of more than half of k
+        // votes is a score above 0.5. Missing neighbors vote for ham.
+        int votesForSpam = 0;
+        for (int i = 0; i < topKs.size(); i++) {
+            // Count number of votes for spam.
+            if (isSpam(topKs.getId(i))) {
+                votesForSpam++;
+            }
+        }
+        return votesForSpam / (double) kforKNN;
+    }
 
     /**
-     * Calculate (cosine angle) similarity between unweighted tokenized messages.
-     * TODO Make public and static?
-     * TODO Add term weighting?
-     * @param tkMessage1 tokenized message
-     * @param tkMessage2 tokenized message
-     * @return completely dissimilar 0.0 to identical 1.0
+     * Candidates of approximate search for a query.
+     * @param query the query
+     * @param threadScratch this thread's scratch space, receives the candidates
+     * @return the candidates, or null to search exactly: without approximate
+     *         search or if there are fewer than k candidates
      */
-    private double similarity(TokenizedMessage tkMessage1, TokenizedMessage tkMessage2) {
+    private MinHashLSH.Candidates candidates(KNNIndex.Query query, Scratch threadScratch) {
+        if (lsh == null) { return null; }
+        lsh.candidates(query, index, threadScratch.candidates);
+        return (threadScratch.candidates.size() < kforKNN) ? null : threadScratch.candidates;
+    }
 
-        // Get tokens.
-        List<String> allTokensSet1 = tkMessage1.getAllTokens();
-        List<String> allTokensSet2 = tkMessage2.getAllTokens();
+    /**
+     * Find the k most-similar training messages of a query. The cost is
+     * bounded by the postings of the query's terms: a query with fewer
+     * postings than training messages visits only the messages it touches.
+     * @param query the query
+     * @param candidates the training messages to score,
+     *                   or null to score every training message sharing a term
+     * @param threadScratch this thread's scratch space, its accumulator
+     *                      zeroed and left zeroed
+     * @return the k most-similar messages, in the scratch space's selector
+     */
+    private TopKSelector nearestNeighbors(KNNIndex.Query query, MinHashLSH.Candidates candidates,
+                                          Scratch threadScratch) {
+        TopKSelector topKs = threadScratch.topKs;
+        topKs.clear();
+
+        if (candidates != null) {
+            // Re-rank the candidates exactly against the query scattered by
+            // term id, so each costs only its own terms. The selector breaks
+            // ties by id, so their order doesn't matter.
+            if (threadScratch.queryWeights.length < index.numTerms()) {
+                threadScratch.queryWeights = new double[index.numTerms()];
+            }
+            double[] queryWeights = threadScratch.queryWeights;
+            scatter(query, queryWeights, false);
+            for (int c = 0; c < candidates.size(); c++) {
+                int trainId = candidates.id(c);
+                if (forgotten.get(trainId)) { continue; }
+                double dotProduct = index.dot(queryWeights, trainId);
+                if (dotProduct == 0.0) { continue; }
+                topKs.offer(trainId, dotProduct / (query.norm * index.norm(trainId)));
+            }
+            scatter(query, queryWeights, true);
+            return topKs;
+        }
 
-        // Get length of vectors.
-        double lengthMssge1 = Math.sqrt(allTokensSet1.size());
-        double lengthMssge2 = Math.sqrt(allTokensSet2.size());
+        // Accumulate the dot product with every training message sharing
+        // at least one token with the test message. Without weighting, all
+        // token weights are 1 and the dot product is the number of shared
+        // tokens. If the query has fewer postings than there are training
+        // messages, the messages touched are recorded and only those are
+        // visited; otherwise visiting them all costs no more than the
+        // accumulation, and recording them would.
+        double[] dotProducts = threadScratch.dotProducts;
+        int numPostings = 0;
+        for (int termId : query.termIds) {
+            if (index.hasPostings(termId)) {
+                numPostings += index.postingEnd(termId) - index.postingStart(termId);
+            }
+        }
+        boolean recordTouched = numPostings < index.size();
+        int[] touched = threadScratch.touched;
+        int numTouched = 0;
+        for (int i = 0; i < query.termIds.length; i++) {
+            int termId = query.termIds[i];
+
+            // Terms added to the vocabulary after training have no postings.
+            if (!index.hasPostings(termId)) { continue; }
+
+            double weight = query.weights[i];
+            int start = index.postingStart(termId);
+            int end = index.postingEnd(termId);
+            if (recordTouched) {
+                for (int p = start; p < end; p++) {
+                    int trainId = index.posting(p);
+                    double dotProduct = dotProducts[trainId];
+                    if (dotProduct == 0.0) {
+                        touched[numTouched++] = trainId;
+                    }
+                    dotProducts[trainId] = dotProduct + weight * index.postingWeight(p);
+                }
+            } else {
+                for (int p = start; p < end; p++) {
+                    dotProducts[index.posting(p)] += weight * index.postingWeight(p);
+                }
+            }
+        }
 
-        // Find intersection between sets of body tokens.
-        List<String> intersection = new ArrayList<>(allTokensSet1);
-        intersection.retainAll(allTokensSet2);
+        // Calculate (cosine angle) similarity with the touched train messages,
+        // keeping the k most-similar messages in a bounded heap, which breaks
+        // ties by training order whatever order they are offered in.
+        // Messages sharing no tokens have similarity 0.0 and are not scored.
+        // Entries are zeroed as they are read, for the next query.
+        if (recordTouched) {
+            for (int t = 0; t < numTouched; t++) {
+                offer(topKs, query, dotProducts, touched[t]);
+            }
+        } else {
+            for (int trainId = 0; trainId < dotProducts.length; trainId++) {
+                offer(topKs, query, dotProducts, trainId);
+            }
+        }
+        return topKs;
+    }
 
-        // With all token weights 1, the size of the intersection of the
-        // sets of tokens is equivalent to A dot B.
-        // Return cosine angle as measure of similarity by dividing the
-        // dot product by the product of the lengths of the vectors of tokens.
-        return ((double) intersection.size()) / (lengthMssge1 * lengthMssge2);
+    /**
+     * Scatter the weights of a query's index terms into a dense array by
+     * term id, or zero them again.
+     * @param query the query
+     * @param queryWeights weights by term id
+     * @param clear true to zero the query's entries
+     */
+    private void scatter(KNNIndex.Query query, double[] queryWeights, boolean clear) {
+        for (int i = 0; i < query.termIds.length; i++) {
+            int termId = query.termIds[i];
+            if (termId >= 0 && termId < index.numTerms()) {
+                queryWeights[termId] = clear ? 0.0 : query.weights[i];
+            }
+        }
+    }
+
+    /**
+     * Offer a training message with a non-zero dot product to the selector
+     * unless it was forgotten, and zero its accumulator.
+     * @param topKs selector of the nearest neighbors
+     * @param query query vector
+     * @param dotProducts accumulated dot products by training message id
+     * @param trainId training message id
+     */
+    private void offer(TopKSelector topKs, KNNIndex.Query query, double[] dotProducts, int trainId) {
+        double dotProduct = dotProducts[trainId];
+        if (dotProduct == 0.0) { return; }
+        dotProducts[trainId] = 0.0;
+        if (forgotten.get(trainId)) { return; }
+        topKs.offer(trainId, dotProduct / (query.norm * index.norm(trainId)));
+    }
+
+    /**
+     * @param topKs selected neighbors
+     * @return ascending ids of the neighbors
+     */
+    private static int[] neighborIds(TopKSelector topKs) {
+        int[] ids = new int[topKs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = topKs.getId(i);
+        }
+        Arrays.sort(ids);
+        return ids;
     }
 
 
@@ -256,6 +722,10 @@ public class KNN implements GenericClassifier {
         return kforKNN;
     }
 
+    public TermWeighting getWeighting() {
+        return index.weighting();
+    }
+
     public List<TokenizedMessage> getTokenizedTrainMessages() {
         return tokenizedTrainMessages;
     }
@@ -0,0 +1,830 @@
+package classifier.classifiers.core;
+
+import classifier.messagetypes.TokenizedMessage;
+import classifier.utils.IdfTable;
+import classifier.utils.TermWeighting;
+import classifier.utils.Vocabulary;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Training set of a KNN classifier: the weighted term id vector and label
+ * of every training message, plus the inverted index from term id to the
+ * training messages containing it.
+ *
+ * Vectors and posting lists are stored in compressed row form, one flat
+ * array of ids with an offset array per row, so an index built in memory
+ * and an index mapped from a file are read the same way. The document
+ * frequency of a term is the length of its posting list, so the index is
+ * its own IDF table for weighting queries, until KNN learns or forgets
+ * messages and updates the table without rebuilding the index.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int    magic "KNN1", int version
+ *   int    number of training messages, int number of terms
+ *   int    total number of (message, term) entries
+ *   int    term weighting, long number of tokens in all training messages
+ *   double[messages]   norms of the vectors
+ *   int[messages + 1]  offsets of the vectors
+ *   int[entries]       term ids of the vectors
+ *   double[entries]    weights of the vectors, if weighted
+ *   int[terms + 1]     offsets of the posting lists
+ *   int[entries]       training message ids of the posting lists
+ *   double[entries]    weights of the posting lists, if weighted
+ *   int[terms + 1]     offsets of the terms in the string table
+ *   byte[messages]     labels, 1 if spam
+ *   byte[]             string table, UTF-8 terms sorted by their bytes
+ * </pre>
+ * A mapped index keeps nothing on the heap but the mapping, so scoring
+ * can start without reading or tokenizing the training messages.
+ * Files are limited to 2 GB by the size of a single mapping.
+ */
+class KNNIndex {
+
+    /**
+     * "KNN1".
+     */
+    private static final int MAGIC = 0x4B4E4E31;
+
+    private static final int VERSION = 3;
+
+    /**
+     * Length ratio above which dot() binary searches instead of merging.
+     */
+    private static final int GALLOP_RATIO = 16;
+
+    /**
+     * Weighted term vector of a message to score against the index.
+     */
+    static final class Query {
+
+        /**
+         * Ascending term ids in this index. Terms not in the index
+         * have ids without posting lists.
+         */
+        final int[] termIds;
+
+        /**
+         * Weights parallel to termIds.
+         */
+        final double[] weights;
+
+        /**
+         * Euclidean norm of the vector.
+         */
+        final double norm;
+
+        Query(int[] termIds, double[] weights) {
+            this.termIds = termIds;
+            this.weights = weights;
+            this.norm = norm(weights);
+        }
+    }
+
+    /**
+     * Number of training messages.
+     */
+    private final int size;
+
+    /**
+     * Number of term ids, the range of ids with posting lists.
+     */
+    private final int numTerms;
+
+    /**
+     * Term weighting of the vectors.
+     */
+    private final TermWeighting weighting;
+
+    /**
+     * Number of tokens in all training messages.
+     */
+    private final long totalLength;
+
+    /**
+     * Euclidean norms of the vectors, computed once when indexing.
+     */
+    private final DoubleBuffer norms;
+
+    /**
+     * Offsets of the vectors, size + 1 entries.
+     */
+    private final IntBuffer vectorOffsets;
+
+    /**
+     * Term ids of all vectors, ascending within each vector.
+     */
+    private final IntBuffer vectorTerms;
+
+    /**
+     * Weights parallel to vectorTerms, or null if every weight is 1.
+     */
+    private final DoubleBuffer vectorWeights;
+
+    /**
+     * Offsets of the posting lists, numTerms + 1 entries.
+     */
+    private final IntBuffer postingOffsets;
+
+    /**
+     * Training message ids of all posting lists, ascending within each list.
+     */
+    private final IntBuffer postings;
+
+    /**
+     * Weights parallel to postings, or null if every weight is 1.
+     */
+    private final DoubleBuffer postingWeights;
+
+    /**
+     * Labels, 1 if spam.
+     */
+    private final ByteBuffer labels;
+
+    /**
+     * Vocabulary the term ids belong to, for an index built in memory.
+     */
+    private final Vocabulary vocabulary;
+
+    /**
+     * Sorted terms the term ids belong to, for a mapped index.
+     */
+    private final MappedTermTable terms;
+
+    /**
+     * Document frequencies of the terms, read off the posting lists
+     * of a mapped index when first needed to weigh a query.
+     */
+    private volatile IdfTable idfTable;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Build an index of tokenized messages in memory. Term ids are the ids
+     * of the shared vocabulary.
+     * @param messages training messages
+     * @param weighting term weighting of the vectors
+     */
+    KNNIndex(List<TokenizedMessage> messages, TermWeighting weighting) {
+        this(messages, labelsOf(messages), weighting);
+    }
+
+    /**
+     * Build an index of tokenized messages with given labels in memory,
+     * e.g. of messages learned with a label other than their own.
+     * @param messages training messages
+     * @param spam labels parallel to messages, true if spam
+     * @param weighting term weighting of the vectors
+     */
+    KNNIndex(List<TokenizedMessage> messages, boolean[] spam, TermWeighting weighting) {
+        this.size = messages.size();
+        this.weighting = weighting;
+        this.vocabulary = Vocabulary.shared();
+        this.terms = null;
+
+        // Vectors, and the number of messages containing each term
+        // to size the posting lists.
+        int[] vectorOffsetArray = new int[size + 1];
+        for (int trainId = 0; trainId < size; trainId++) {
+            vectorOffsetArray[trainId + 1] = vectorOffsetArray[trainId]
+                    + messages.get(trainId).getTermIds().length;
+        }
+        int[] vectorTermArray = new int[vectorOffsetArray[size]];
+        byte[] labelArray = new byte[size];
+        int[] documentFrequencies = new int[vocabulary.size()];
+        long length = 0;
+        for (int trainId = 0; trainId < size; trainId++) {
+            TokenizedMessage message = messages.get(trainId);
+            int[] termIds = message.getTermIds();
+            int[] termCounts = message.getTermCounts();
+            System.arraycopy(termIds, 0, vectorTermArray, vectorOffsetArray[trainId], termIds.length);
+            labelArray[trainId] = (byte) (spam[trainId] ? 1 : 0);
+
+            // Vectorizing may have added terms to the vocabulary.
+            if (termIds.length > 0 && termIds[termIds.length - 1] >= documentFrequencies.length) {
+                documentFrequencies = Arrays.copyOf(documentFrequencies,
+                        Math.max(termIds[termIds.length - 1] + 1, documentFrequencies.length * 2));
+            }
+            for (int i = 0; i < termIds.length; i++) {
+                documentFrequencies[termIds[i]]++;
+                length += termCounts[i];
+            }
+        }
+        this.numTerms = documentFrequencies.length;
+        this.totalLength = length;
+        this.idfTable = new IdfTable(documentFrequencies, size, totalLength);
+
+        // Weigh the vectors by the document frequencies.
+        double[] normArray = new double[size];
+        double[] vectorWeightArray = null;
+        if (weighting == TermWeighting.NONE) {
+            for (int trainId = 0; trainId < size; trainId++) {
+                normArray[trainId] = unweightedNorm(vectorOffsetArray[trainId + 1] - vectorOffsetArray[trainId]);
+            }
+        } else {
+            vectorWeightArray = new double[vectorTermArray.length];
+            for (int trainId = 0; trainId < size; trainId++) {
+                TokenizedMessage message = messages.get(trainId);
+                double[] weights = idfTable.weigh(weighting, message.getTermIds(), message.getTermCounts());
+                System.arraycopy(weights, 0, vectorWeightArray, vectorOffsetArray[trainId], weights.length);
+                normArray[trainId] = norm(weights);
+            }
+        }
+
+        // Fill the posting lists in training message order.
+        int[] postingOffsetArray = new int[numTerms + 1];
+        for (int termId = 0; termId < numTerms; termId++) {
+            postingOffsetArray[termId + 1] = postingOffsetArray[termId] + documentFrequencies[termId];
+        }
+        int[] postingArray = new int[postingOffsetArray[numTerms]];
+        double[] postingWeightArray = (vectorWeightArray == null) ? null : new double[postingArray.length];
+        int[] filled = Arrays.copyOf(postingOffsetArray, numTerms);
+        for (int trainId = 0; trainId < size; trainId++) {
+            for (int i = vectorOffsetArray[trainId]; i < vectorOffsetArray[trainId + 1]; i++) {
+                int p = filled[vectorTermArray[i]]++;
+                postingArray[p] = trainId;
+                if (postingWeightArray != null) {
+                    postingWeightArray[p] = vectorWeightArray[i];
+                }
+            }
+        }
+
+        this.norms = DoubleBuffer.wrap(normArray);
+        this.vectorOffsets = IntBuffer.wrap(vectorOffsetArray);
+        this.vectorTerms = IntBuffer.wrap(vectorTermArray);
+        this.vectorWeights = (vectorWeightArray == null) ? null : DoubleBuffer.wrap(vectorWeightArray);
+        this.postingOffsets = IntBuffer.wrap(postingOffsetArray);
+        this.postings = IntBuffer.wrap(postingArray);
+        this.postingWeights = (postingWeightArray == null) ? null : DoubleBuffer.wrap(postingWeightArray);
+        this.labels = ByteBuffer.wrap(labelArray);
+    }
+
+    /**
+     * Constructor over a mapped index file.
+     * @param buffer the mapped file
+     * @throws IOException if the file is not an index
+     */
+    private KNNIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a KNN index.");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported KNN index version " + version + ".");
+        }
+
+        // Every section is checked against the file before it's read.
+        ByteBuffer header = slice(buffer, 4 + 4 + 4 + 4 + 8);
+        this.size = header.getInt();
+        this.numTerms = header.getInt();
+        int entries = header.getInt();
+        int weightingId = header.getInt();
+        if (weightingId < 0 || weightingId >= TermWeighting.values().length) {
+            throw new IOException("Unknown KNN index term weighting " + weightingId + ".");
+        }
+        this.weighting = TermWeighting.values()[weightingId];
+        this.totalLength = header.getLong();
+        this.vocabulary = null;
+        if (size < 0 || numTerms < 0 || entries < 0) {
+            throw corrupt();
+        }
+        boolean weighted = weighting != TermWeighting.NONE;
+
+        this.norms = slice(buffer, 8L * size).asDoubleBuffer();
+        this.vectorOffsets = slice(buffer, 4L * (size + 1)).asIntBuffer();
+        this.vectorTerms = slice(buffer, 4L * entries).asIntBuffer();
+        this.vectorWeights = weighted ? slice(buffer, 8L * entries).asDoubleBuffer() : null;
+        this.postingOffsets = slice(buffer, 4L * (numTerms + 1)).asIntBuffer();
+        this.postings = slice(buffer, 4L * entries).asIntBuffer();
+        this.postingWeights = weighted ? slice(buffer, 8L * entries).asDoubleBuffer() : null;
+        IntBuffer termOffsets = slice(buffer, 4L * (numTerms + 1)).asIntBuffer();
+        this.labels = slice(buffer, size);
+        this.terms = new MappedTermTable(termOffsets, slice(buffer, termOffsets.get(numTerms)));
+
+        // Rows and ids are used as array indexes when scoring.
+        if (!isValidRows(vectorOffsets, entries) || !isValidRows(postingOffsets, entries)
+                || !isValidIds(vectorTerms, numTerms) || !isValidIds(postings, size)
+                || !terms.isValid()) {
+            throw corrupt();
+        }
+    }
+
+
+    //---------------------------+
+    //     STATIC METHODS       /
+    //-------------------------+
+
+    /**
+     * Euclidean norm of an unweighted vector. With all token weights 1,
+     * it is the square root of the number of distinct tokens.
+     * @param length number of distinct tokens
+     * @return the norm
+     */
+    static double unweightedNorm(int length) {
+        return Math.sqrt(length);
+    }
+
+    /**
+     * Euclidean norm of a weighted vector.
+     * @param weights the weights
+     * @return the norm
+     */
+    static double norm(double[] weights) {
+        double sumOfSquares = 0.0;
+        for (double weight : weights) {
+            sumOfSquares += weight * weight;
+        }
+        return Math.sqrt(sumOfSquares);
+    }
+
+    /**
+     * Dot product of two sparse vectors, found with one linear merge of the
+     * ascending term ids. When one vector is much longer, the ids of the
+     * shorter one are binary searched in the longer one instead. Without
+     * weights, every weight is 1 and the dot product is the number of
+     * shared term ids.
+     * @param termIds ascending term ids
+     * @param weights weights parallel to termIds, or null
+     * @param vectors buffer holding the other vector's term ids
+     * @param vectorWeights buffer holding the other vector's weights, or null
+     * @param start position of the other vector's first term id
+     * @param end position after the other vector's last term id
+     * @return the dot product
+     */
+    static double dot(int[] termIds, double[] weights,
+                      IntBuffer vectors, DoubleBuffer vectorWeights, int start, int end) {
+        int length = end - start;
+        if (termIds.length == 0 || length == 0) { return 0.0; }
+
+        double dotProduct = 0.0;
+        if (termIds.length * GALLOP_RATIO < length) {
+            // Probe the long vector for each id of the short one.
+            int low = start;
+            for (int i = 0; i < termIds.length && low < end; i++) {
+                int termId = termIds[i];
+                int high = end - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    int id = vectors.get(mid);
+                    if (id < termId) {
+                        low = mid + 1;
+                    } else if (id > termId) {
+                        high = mid - 1;
+                    } else {
+                        dotProduct += weight(weights, i) * weight(vectorWeights, mid);
+                        low = mid + 1;
+                        break;
+                    }
+                }
+            }
+            return dotProduct;
+        }
+
+        // Linear merge.
+        int i = 0;
+        int j = start;
+        int a = termIds[0];
+        int b = vectors.get(j);
+        while (true) {
+            if (a < b) {
+                if (++i == termIds.length) { break; }
+                a = termIds[i];
+            } else if (a > b) {
+                if (++j == end) { break; }
+                b = vectors.get(j);
+            } else {
+                dotProduct += weight(weights, i) * weight(vectorWeights, j);
+                if (++i == termIds.length || ++j == end) { break; }
+                a = termIds[i];
+                b = vectors.get(j);
+            }
+        }
+        return dotProduct;
+    }
+
+    /**
+     * @param messages tokenized messages
+     * @return their labels, true if spam
+     */
+    static boolean[] labelsOf(List<TokenizedMessage> messages) {
+        boolean[] spam = new boolean[messages.size()];
+        for (int i = 0; i < spam.length; i++) {
+            spam[i] = messages.get(i).isSpam();
+        }
+        return spam;
+    }
+
+    /**
+     * Map an index file.
+     * @param file index file
+     * @return the mapped index
+     * @throws IOException if the file can't be read or is not an index
+     */
+    static KNNIndex map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new KNNIndex(buffer);
+        }
+    }
+
+
+    //------------------------+
+    //     PACKAGE METHODS   /
+    //----------------------+
+
+    /**
+     * Write the index to a file. Terms no training message contains are
+     * left out and the remaining terms are renumbered in table order.
+     * @param file file to write
+     * @throws IOException if the file can't be written
+     */
+    void write(Path file) throws IOException {
+
+        // Terms with posting lists.
+        int numUsed = 0;
+        int[] used = new int[numTerms];
+        for (int termId = 0; termId < numTerms; termId++) {
+            if (postingEnd(termId) > postingStart(termId)) {
+                used[numUsed++] = termId;
+            }
+        }
+        String[] usedTerms = new String[numUsed];
+        for (int i = 0; i < numUsed; i++) {
+            usedTerms[i] = term(used[i]);
+        }
+
+        // Sort them by their UTF-8 bytes and map the old ids to the new ones.
+        byte[][] bytes = new byte[numUsed][];
+        int[] order = MappedTermTable.sort(usedTerms, bytes);
+        int[] newIds = new int[numTerms];
+        for (int newId = 0; newId < numUsed; newId++) {
+            newIds[used[order[newId]]] = newId;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)))) {
+
+            int entries = vectorOffsets.get(size);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(numUsed);
+            out.writeInt(entries);
+            out.writeInt(weighting.ordinal());
+            out.writeLong(totalLength);
+
+            // Vectors, with the new ids kept ascending. Each entry is packed
+            // as (new id, position) so the weights can follow the ids.
+            for (int trainId = 0; trainId < size; trainId++) {
+                out.writeDouble(norms.get(trainId));
+            }
+            for (int trainId = 0; trainId <= size; trainId++) {
+                out.writeInt(vectorOffsets.get(trainId));
+            }
+            long[] sortedEntries = new long[entries];
+            for (int trainId = 0; trainId < size; trainId++) {
+                int start = vectorStart(trainId);
+                int end = vectorEnd(trainId);
+                for (int p = start; p < end; p++) {
+                    sortedEntries[p] = ((long) newIds[vectorTerm(p)] << 32) | p;
+                }
+                Arrays.sort(sortedEntries, start, end);
+            }
+            for (long entry : sortedEntries) {
+                out.writeInt((int) (entry >>> 32));
+            }
+            if (vectorWeights != null) {
+                for (long entry : sortedEntries) {
+                    out.writeDouble(vectorWeights.get((int) entry));
+                }
+            }
+
+            // Posting lists, in the new term order.
+            int offset = 0;
+            out.writeInt(offset);
+            for (int newId = 0; newId < numUsed; newId++) {
+                int oldId = used[order[newId]];
+                offset += postingEnd(oldId) - postingStart(oldId);
+                out.writeInt(offset);
+            }
+            for (int newId = 0; newId < numUsed; newId++) {
+                int oldId = used[order[newId]];
+                for (int p = postingStart(oldId); p < postingEnd(oldId); p++) {
+                    out.writeInt(posting(p));
+                }
+            }
+            if (postingWeights != null) {
+                for (int newId = 0; newId < numUsed; newId++) {
+                    int oldId = used[order[newId]];
+                    for (int p = postingStart(oldId); p < postingEnd(oldId); p++) {
+                        out.writeDouble(postingWeights.get(p));
+                    }
+                }
+            }
+
+            // Terms and labels.
+            MappedTermTable.writeOffsets(out, bytes, order);
+            for (int trainId = 0; trainId < size; trainId++) {
+                out.writeByte(labels.get(trainId));
+            }
+            MappedTermTable.writeStrings(out, bytes, order);
+        }
+    }
+
+    /**
+     * Weighted vector of a message in the term ids of this index,
+     * weighted by the document frequencies of the training messages.
+     * @param message tokenized message
+     * @return the query
+     */
+    Query query(TokenizedMessage message) {
+        int[] termIds = message.getQueryTermIds();
+        int[] termCounts = message.getQueryTermCounts();
+
+        if (terms != null) {
+            // Look the terms up in the mapped term table and sort the ids,
+            // packing each as (id, position) so the counts follow the ids.
+            // Tokens the message's vocabulary doesn't know may still be
+            // in the table.
+            Vocabulary messageVocabulary = message.getVocabulary();
+            long[] entries = new long[termIds.length];
+            for (int i = 0; i < termIds.length; i++) {
+                String term = (termIds[i] < 0)
+                        ? message.getUnknownTerm(termIds[i]) : messageVocabulary.termOf(termIds[i]);
+                int termId = terms.termId(term);
+                entries[i] = ((long) termId << 32) | i;
+            }
+            Arrays.sort(entries);
+
+            int[] mappedIds = new int[entries.length];
+            int[] mappedCounts = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                mappedIds[i] = (int) (entries[i] >> 32);
+                mappedCounts[i] = termCounts[(int) entries[i]];
+            }
+            termIds = mappedIds;
+            termCounts = mappedCounts;
+        }
+
+        double[] weights;
+        if (weighting == TermWeighting.NONE) {
+            weights = new double[termIds.length];
+            Arrays.fill(weights, 1.0);
+        } else {
+            weights = idfTable().weigh(weighting, termIds, termCounts);
+        }
+        return new Query(termIds, weights);
+    }
+
+    /**
+     * @return term weighting of the vectors
+     */
+    TermWeighting weighting() {
+        return weighting;
+    }
+
+    /**
+     * @return number of training messages
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return number of term ids, the range of ids with posting lists
+     */
+    int numTerms() {
+        return numTerms;
+    }
+
+    /**
+     * @param trainId training message id
+     * @return true if the training message is spam
+     */
+    boolean isSpam(int trainId) {
+        return labels.get(trainId) != 0;
+    }
+
+    /**
+     * @param trainId training message id
+     * @return number of distinct tokens of the training message
+     */
+    int length(int trainId) {
+        return vectorOffsets.get(trainId + 1) - vectorOffsets.get(trainId);
+    }
+
+    /**
+     * @param trainId training message id
+     * @return Euclidean norm of the training message's vector
+     */
+    double norm(int trainId) {
+        return norms.get(trainId);
+    }
+
+    /**
+     * Dot product of a query with a training message's vector.
+     * @param query the query
+     * @param trainId training message id
+     * @return the dot product
+     */
+    double dot(Query query, int trainId) {
+        return dot(query.termIds, query.weights, vectorTerms, vectorWeights,
+                vectorStart(trainId), vectorEnd(trainId));
+    }
+
+    /**
+     * Dot product of a query scattered into a dense array with a training
+     * message's vector. Costs O(terms of the message), whatever the length
+     * of the query, and sums in the same order as dot(Query, int).
+     * @param queryWeights weights of the query indexed by term id, at least
+     *                     numTerms() entries, 0 for terms not in the query
+     * @param trainId training message id
+     * @return the dot product
+     */
+    double dot(double[] queryWeights, int trainId) {
+        double dotProduct = 0.0;
+        for (int p = vectorStart(trainId), end = vectorEnd(trainId); p < end; p++) {
+            dotProduct += queryWeights[vectorTerms.get(p)] * weight(vectorWeights, p);
+        }
+        return dotProduct;
+    }
+
+    /**
+     * @param trainId training message id
+     * @return position of the message's first term id in the vectors
+     */
+    int vectorStart(int trainId) {
+        return vectorOffsets.get(trainId);
+    }
+
+    /**
+     * @param trainId training message id
+     * @return position after the message's last term id in the vectors
+     */
+    int vectorEnd(int trainId) {
+        return vectorOffsets.get(trainId + 1);
+    }
+
+    /**
+     * @param position position in the vectors
+     * @return the term id at the position
+     */
+    int vectorTerm(int position) {
+        return vectorTerms.get(position);
+    }
+
+    /**
+     * @param termId term id
+     * @return true if any training message contains the term
+     */
+    boolean hasPostings(int termId) {
+        return termId >= 0 && termId < numTerms && postingEnd(termId) > postingStart(termId);
+    }
+
+    /**
+     * @param termId term id
+     * @return position of the term's first posting
+     */
+    int postingStart(int termId) {
+        return postingOffsets.get(termId);
+    }
+
+    /**
+     * @param termId term id
+     * @return position after the term's last posting
+     */
+    int postingEnd(int termId) {
+        return postingOffsets.get(termId + 1);
+    }
+
+    /**
+     * @param position position in the posting lists
+     * @return the training message id at the position
+     */
+    int posting(int position) {
+        return postings.get(position);
+    }
+
+    /**
+     * @param position position in the posting lists
+     * @return weight of the term in the training message at the position
+     */
+    double postingWeight(int position) {
+        return (postingWeights == null) ? 1.0 : postingWeights.get(position);
+    }
+
+    /**
+     * @param termId term id
+     * @return the term
+     */
+    String term(int termId) {
+        return (terms == null) ? vocabulary.termOf(termId) : terms.term(termId);
+    }
+
+
+    /**
+     * Document frequencies of the index terms, read off the posting lists
+     * of a mapped index the first time a query is weighed. The table of an
+     * index built in memory is kept up to date by KNN as messages are
+     * learned or forgotten, and weighs the queries from then on.
+     * @return the IDF table
+     */
+    IdfTable idfTable() {
+        IdfTable table = idfTable;
+        if (table == null) {
+            int[] documentFrequencies = new int[numTerms];
+            for (int termId = 0; termId < numTerms; termId++) {
+                documentFrequencies[termId] = postingEnd(termId) - postingStart(termId);
+            }
+            table = new IdfTable(documentFrequencies, size, totalLength);
+            idfTable = table;
+        }
+        return table;
+    }
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * @return weights[i], or 1 if weights is null
+     */
+    private static double weight(double[] weights, int i) {
+        return (weights == null) ? 1.0 : weights[i];
+    }
+
+    /**
+     * @return weights.get(i), or 1 if weights is null
+     */
+    private static double weight(DoubleBuffer weights, int i) {
+        return (weights == null) ? 1.0 : weights.get(i);
+    }
+
+    /**
+     * Slice the next section off a mapped index file, advancing it.
+     * @param buffer the mapped file
+     * @param length length of the section in bytes
+     * @return the section
+     * @throws IOException if the file ends before the section does
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, long length) throws IOException {
+        ByteBuffer slice = MappedTermTable.slice(buffer, length);
+        if (slice == null) {
+            throw corrupt();
+        }
+        return slice;
+    }
+
+    /**
+     * @return the error of an index whose sections don't fit the file
+     */
+    private static IOException corrupt() {
+        return new IOException("Corrupt KNN index.");
+    }
+
+    /**
+     * @param offsets row offsets, one more than the number of rows
+     * @param entries number of entries of the rows
+     * @return true if the offsets rise from 0 to the number of entries
+     */
+    private static boolean isValidRows(IntBuffer offsets, int entries) {
+        int rows = offsets.limit() - 1;
+        if (offsets.get(0) != 0 || offsets.get(rows) != entries) {
+            return false;
+        }
+        for (int row = 0; row < rows; row++) {
+            if (offsets.get(row) > offsets.get(row + 1)) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @param ids ids
+     * @param bound number of valid ids
+     * @return true if every id is in [0, bound)
+     */
+    private static boolean isValidIds(IntBuffer ids, int bound) {
+        for (int i = 0, n = ids.limit(); i < n; i++) {
+            int id = ids.get(i);
+            if (id < 0 || id >= bound) { return false; }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,309 @@
+package classifier.classifiers.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * Sorted table of terms inside a mapped model file.
+ *
+ * Terms are stored as UTF-8 bytes sorted as unsigned bytes, with an
+ * offset array giving the start of each term. A term's id is its position
+ * in the table, so tokens are looked up with a binary search over the
+ * mapped bytes without building a map on the heap. A table can also have a
+ * mapped hash index, an open-addressing array of term ids slotted by the
+ * String hash of their term, so a lookup compares the bytes of about one
+ * term instead of a binary search's worth.
+ */
+class MappedTermTable {
+
+    /**
+     * Per-thread buffer for the UTF-8 bytes of the token being looked up.
+     */
+    private static final ThreadLocal<byte[][]> KEY = ThreadLocal.withInitial(() -> new byte[][] { new byte[64] });
+
+    /**
+     * Number of terms.
+     */
+    private final int size;
+
+    /**
+     * Offsets of the terms in the string table, size + 1 entries.
+     */
+    private final IntBuffer offsets;
+
+    /**
+     * The string table.
+     */
+    private final ByteBuffer strings;
+
+    /**
+     * Term ids by hash slot, -1 where empty, or null to binary search.
+     */
+    private final IntBuffer hashSlots;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor over the mapped offsets and string table.
+     * @param offsets offsets of the terms, size + 1 entries
+     * @param strings the string table
+     */
+    MappedTermTable(IntBuffer offsets, ByteBuffer strings) {
+        this(offsets, strings, null);
+    }
+
+    /**
+     * Constructor over the mapped offsets, string table and hash index.
+     * @param offsets offsets of the terms, size + 1 entries
+     * @param strings the string table
+     * @param hashSlots term ids by hash slot, hashCapacity(size) entries,
+     *                  or null to binary search
+     */
+    MappedTermTable(IntBuffer offsets, ByteBuffer strings, IntBuffer hashSlots) {
+        this.size = offsets.limit() - 1;
+        this.offsets = offsets;
+        this.strings = strings;
+        this.hashSlots = hashSlots;
+    }
+
+
+    //---------------------------+
+    //     STATIC METHODS       /
+    //-------------------------+
+
+    /**
+     * Encode terms and sort them into table order.
+     * @param terms terms to store
+     * @param bytes receives the UTF-8 bytes of each term, same length as terms
+     * @return positions in terms, in table order
+     */
+    static int[] sort(String[] terms, byte[][] bytes) {
+        Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            bytes[i] = terms[i].getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(bytes[a], bytes[b]));
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Write the offsets of sorted terms, size + 1 ints.
+     * @param out output
+     * @param bytes UTF-8 bytes of the terms
+     * @param order positions in bytes, in table order
+     * @return total length of the string table
+     * @throws IOException if the output can't be written
+     */
+    static int writeOffsets(DataOutputStream out, byte[][] bytes, int[] order) throws IOException {
+        int offset = 0;
+        out.writeInt(offset);
+        for (int i : order) {
+            offset += bytes[i].length;
+            out.writeInt(offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Write the string table of sorted terms.
+     * @param out output
+     * @param bytes UTF-8 bytes of the terms
+     * @param order positions in bytes, in table order
+     * @throws IOException if the output can't be written
+     */
+    static void writeStrings(DataOutputStream out, byte[][] bytes, int[] order) throws IOException {
+        for (int i : order) {
+            out.write(bytes[i]);
+        }
+    }
+
+
+    /**
+     * Number of slots of the hash index of a table: a power of two of at
+     * least twice the number of terms, so probe sequences stay short.
+     * @param size number of terms
+     * @return number of slots
+     */
+    static int hashCapacity(int size) {
+        return Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 1;
+    }
+
+    /**
+     * Write the hash index of sorted terms, hashCapacity(terms.length) ints.
+     * @param out output
+     * @param terms the terms
+     * @param order positions in terms, in table order
+     * @throws IOException if the output can't be written
+     */
+    static void writeHashSlots(DataOutputStream out, String[] terms, int[] order) throws IOException {
+        int[] slots = new int[hashCapacity(order.length)];
+        Arrays.fill(slots, -1);
+        int mask = slots.length - 1;
+        for (int id = 0; id < order.length; id++) {
+            int slot = spread(terms[order[id]].hashCode()) & mask;
+            while (slots[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+        for (int id : slots) {
+            out.writeInt(id);
+        }
+    }
+
+    /**
+     * Slice the next bytes off a mapped buffer, advancing it.
+     * @param buffer the buffer
+     * @param length number of bytes
+     * @return the slice, or null if the buffer has fewer bytes left
+     */
+    static ByteBuffer slice(ByteBuffer buffer, long length) {
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        ByteBuffer slice = buffer.slice();
+        slice.limit((int) length);
+        buffer.position(buffer.position() + (int) length);
+        return slice;
+    }
+
+
+    //------------------------+
+    //     PACKAGE METHODS   /
+    //----------------------+
+
+    /**
+     * Check the mapped table, so lookups stay within it: offsets rising
+     * from 0 to the end of the string table, and a hash index of term ids
+     * with at least one empty slot to end every probe.
+     * @return true if the table is consistent
+     */
+    boolean isValid() {
+        if (size < 0 || offsets.get(0) != 0 || offsets.get(size) != strings.limit()) {
+            return false;
+        }
+        for (int id = 0; id < size; id++) {
+            if (offsets.get(id) > offsets.get(id + 1)) { return false; }
+        }
+
+        if (hashSlots != null) {
+            int capacity = hashSlots.limit();
+            if (capacity == 0 || (capacity & (capacity - 1)) != 0) { return false; }
+            boolean hasEmptySlot = false;
+            for (int slot = 0; slot < capacity; slot++) {
+                int id = hashSlots.get(slot);
+                if (id < -1 || id >= size) { return false; }
+                hasEmptySlot |= (id == -1);
+            }
+            if (!hasEmptySlot) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of terms
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Look up a token. Allocates nothing for ASCII tokens.
+     * @param token the token
+     * @return term id, or -1 if unknown
+     */
+    int termId(String token) {
+        // Encode the token, ASCII directly into the per-thread buffer.
+        byte[][] holder = KEY.get();
+        byte[] key = holder[0];
+        int keyLength = token.length();
+        if (keyLength > key.length) {
+            key = new byte[Math.max(keyLength, key.length * 2)];
+            holder[0] = key;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            char c = token.charAt(i);
+            if (c >= 0x80) {
+                key = token.getBytes(StandardCharsets.UTF_8);
+                keyLength = key.length;
+                break;
+            }
+            key[i] = (byte) c;
+        }
+
+        // Probe the hash index, if there is one.
+        if (hashSlots != null) {
+            int mask = hashSlots.limit() - 1;
+            for (int slot = spread(token.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+                int id = hashSlots.get(slot);
+                if (id < 0 || compare(id, key, keyLength) == 0) {
+                    return id;
+                }
+            }
+        }
+
+        // Binary search over the sorted string table.
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, key, keyLength);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param id term id
+     * @return the term
+     */
+    String term(int id) {
+        int start = offsets.get(id);
+        byte[] bytes = new byte[offsets.get(id + 1) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = strings.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Spread the high bits of a String hash to the low bits the slot is
+     * taken from, as HashMap does.
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Compare a term with a key, as unsigned bytes.
+     */
+    private int compare(int id, byte[] key, int keyLength) {
+        int start = offsets.get(id);
+        int length = offsets.get(id + 1) - start;
+        int n = Math.min(length, keyLength);
+        for (int i = 0; i < n; i++) {
+            int cmp = Byte.toUnsignedInt(strings.get(start + i)) - Byte.toUnsignedInt(key[i]);
+            if (cmp != 0) { return cmp; }
+        }
+        return length - keyLength;
+    }
+}
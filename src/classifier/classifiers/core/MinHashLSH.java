@@ -0,0 +1,285 @@
+package classifier.classifiers.core;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+
+/**
+ * MinHash signatures and locality sensitive hashing over the token sets of
+ * the training messages of a KNN index.
+ *
+ * Each signature has bands * rows min-hashes. The rows of a band are hashed
+ * into one bucket key, and two messages collide in a band with probability
+ * about s^rows for token sets of Jaccard similarity s, so they are
+ * candidates with probability 1 - (1 - s^rows)^bands. More bands raise
+ * recall, more rows make candidates fewer and more similar.
+ *
+ * Buckets are stored per band as one sorted primitive array of entries
+ * packing (key, training message id) into a long: the key's high bits over
+ * the id's bits. Finding a bucket is a binary search, and keys differing
+ * only in their low bits share a bucket, which only adds candidates.
+ */
+class MinHashLSH {
+
+    /**
+     * Candidates of one query, in scratch space reused by one thread across
+     * queries: the ids collected, the marks of the ids collected so far,
+     * cleared through the ids when the next query starts, and the query's
+     * signature and band keys.
+     */
+    static final class Candidates {
+
+        private final boolean[] seen;
+
+        private int[] ids = new int[16];
+
+        private int size;
+
+        private long[] signature = new long[0];
+
+        private long[] keys = new long[0];
+
+        /**
+         * @param indexSize number of training messages of the index
+         */
+        Candidates(int indexSize) {
+            this.seen = new boolean[indexSize];
+        }
+
+        /**
+         * @return number of candidates
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param i position, less than size()
+         * @return training message id of the candidate
+         */
+        int id(int i) {
+            return ids[i];
+        }
+
+        /**
+         * Unmark the ids of the last query and make room for a signature.
+         * @param signatureLength number of min-hashes
+         * @param numBands number of bands
+         */
+        private void clear(int signatureLength, int numBands) {
+            for (int i = 0; i < size; i++) {
+                seen[ids[i]] = false;
+            }
+            size = 0;
+            if (signature.length != signatureLength) {
+                signature = new long[signatureLength];
+                keys = new long[numBands];
+            }
+        }
+
+        /**
+         * Collect an id unless it was collected before.
+         * @param trainId training message id
+         */
+        private void add(int trainId) {
+            if (seen[trainId]) { return; }
+            seen[trainId] = true;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = trainId;
+        }
+    }
+
+    /**
+     * Seed of the hash functions, fixed so results are repeatable.
+     */
+    private static final long SEED = 0x5EED5EEDL;
+
+    private final int bands;
+
+    private final int rows;
+
+    /**
+     * Multipliers of the hash functions, odd, bands * rows entries.
+     */
+    private final long[] multipliers;
+
+    /**
+     * Offsets of the hash functions, bands * rows entries.
+     */
+    private final long[] offsets;
+
+    /**
+     * Mask of the low bits of an entry holding the training message id.
+     */
+    private final long idMask;
+
+    /**
+     * Sorted entries per band, one per training message.
+     */
+    private final long[][] buckets;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Hash the training messages of an index into buckets.
+     * @param index the index
+     * @param bands number of bands
+     * @param rows number of min-hashes per band
+     */
+    MinHashLSH(KNNIndex index, int bands, int rows) {
+        if (bands < 1 || rows < 1) {
+            throw new IllegalArgumentException("bands and rows must be at least 1.");
+        }
+        this.bands = bands;
+        this.rows = rows;
+
+        SplittableRandom random = new SplittableRandom(SEED);
+        multipliers = new long[bands * rows];
+        offsets = new long[bands * rows];
+        for (int i = 0; i < multipliers.length; i++) {
+            multipliers[i] = random.nextLong() | 1L;
+            offsets[i] = random.nextLong();
+        }
+
+        // Entry of every training message in every band.
+        int size = index.size();
+        idMask = (size <= 1) ? 1L : (Long.highestOneBit(size - 1) << 1) - 1;
+        buckets = new long[bands][size];
+        long[] signature = new long[bands * rows];
+        long[] keys = new long[bands];
+        for (int trainId = 0; trainId < size; trainId++) {
+            Arrays.fill(signature, Long.MAX_VALUE);
+            for (int p = index.vectorStart(trainId), end = index.vectorEnd(trainId); p < end; p++) {
+                addToSignature(signature, index.vectorTerm(p));
+            }
+            bandKeys(signature, keys);
+            for (int band = 0; band < bands; band++) {
+                buckets[band][trainId] = (keys[band] & ~idMask) | trainId;
+            }
+        }
+
+        // Sort each band by key, then id.
+        for (int band = 0; band < bands; band++) {
+            Arrays.sort(buckets[band]);
+        }
+    }
+
+
+    //------------------------+
+    //     PACKAGE METHODS   /
+    //----------------------+
+
+    /**
+     * Training messages sharing a bucket with a query in at least one band,
+     * collected into a thread's scratch space. Costs O(bands * rows * terms
+     * + candidates), independent of the number of training messages.
+     * @param query the query
+     * @param index the index the query was made for
+     * @param candidates receives the training message ids, unordered
+     */
+    void candidates(KNNIndex.Query query, KNNIndex index, Candidates candidates) {
+        candidates.clear(bands * rows, bands);
+
+        // Signature of the terms known to the index. Other terms can't
+        // be shared with any training message.
+        long[] signature = candidates.signature;
+        Arrays.fill(signature, Long.MAX_VALUE);
+        boolean empty = true;
+        for (int i = 0; i < query.termIds.length; i++) {
+            if (index.hasPostings(query.termIds[i])) {
+                addToSignature(signature, query.termIds[i]);
+                empty = false;
+            }
+        }
+        if (empty) { return; }
+
+        long[] keys = candidates.keys;
+        bandKeys(signature, keys);
+
+        // Collect the ids in every colliding bucket once.
+        for (int band = 0; band < bands; band++) {
+            long[] bandEntries = buckets[band];
+            long key = keys[band] & ~idMask;
+            for (int i = firstIndexOf(bandEntries, key);
+                 i < bandEntries.length && (bandEntries[i] & ~idMask) == key; i++) {
+                candidates.add((int) (bandEntries[i] & idMask));
+            }
+        }
+    }
+
+    int getBands() {
+        return bands;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Lower the min-hashes of a signature with a term. The term id is mixed
+     * once, and each hash function permutes the mixed id with an odd
+     * multiplier and an offset, so a hash costs a multiply and an add.
+     * @param signature min-hashes
+     * @param termId term id
+     */
+    private void addToSignature(long[] signature, int termId) {
+        long mixed = mix(termId);
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = Math.min(signature[i], mixed * multipliers[i] + offsets[i]);
+        }
+    }
+
+    /**
+     * Hash the rows of each band of a signature into a bucket key.
+     * @param signature min-hashes
+     * @param keys receives one key per band
+     */
+    private void bandKeys(long[] signature, long[] keys) {
+        for (int band = 0; band < bands; band++) {
+            long key = band;
+            for (int row = 0; row < rows; row++) {
+                key = mix(key * 31 + signature[band * rows + row]);
+            }
+            keys[band] = key;
+        }
+    }
+
+    /**
+     * Position of the first entry not less than a key in a sorted array.
+     */
+    private static int firstIndexOf(long[] keys, long key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3, spreading every input bit
+     * over the whole hash.
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        x *= 0xC4CEB9FE1A85EC53L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
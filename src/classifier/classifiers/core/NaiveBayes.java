@@ -1,18 +1,58 @@
 package classifier.classifiers.core;
 
+import classifier.classifiers.interfaces.GenericClassifier;
+import classifier.evaluation.ConfusionMatrix;
 import classifier.messagetypes.TokenizedMessage;
+import classifier.utils.Vocabulary;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
-
-public class NaiveBayes {
-
-  // Maps token symbols to token objects
-  private Map<String, Token<String>> tokens;
-
-  // objectCount ids: 'spam', 'ham', 'totalObjects', 'totalTokens',
-  //    'totalTokensspam', 'totalTokensham'
-  private Map<String, Integer> objectCounts; // <id, count>
-  private Map<String, Double> pLabel; // = labelMessageCount / totalMessageCount
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Naive Bayes classification of plain text messages, learning and
+ * forgetting one message at a time. As a GenericClassifier it scores
+ * single messages, batches through a dense block of the most frequent
+ * tokens, and can be evaluated, served and combined like KNN and the
+ * Document Categorizer.
+ */
+public class NaiveBayes implements GenericClassifier {
+
+  // Label ids, used to index the per-label arrays of the model
+  static final int SPAM = 0;
+  static final int HAM = 1;
+  private static final String[] LABELS = {"spam", "ham"};
+
+  // Maps token symbols to token ids, which index the per-label count arrays
+  private Vocabulary vocabulary;
+
+  // <label id, token id> number of the label's messages the token occurs in
+  private int[][] tokenCounts;
+
+  // <label id, token id> log(count + alpha), kept up to date with the counts
+  // so p(token|label) is derived at scoring time; 0.0 where the count is 0
+  private double[][] logCounts;
+
+  private int[] messageCounts;  // <label id, number of messages>
+  private long[] tokenTotals;   // <label id, number of tokens learned>
+  private int totalMessages;
+  private long totalTokens;
+  private double[] logPriors;   // log(labelMessageCount / totalMessageCount)
+  private double[] logDenominators; // log(labelTokenTotal + alphaD)
+
+  // Mapped model file scored directly when loaded with load(Path), in place
+  // of the vocabulary and count arrays; null once copied to the heap
+  private NaiveBayesSnapshot snapshot;
+
+  // Dense log counts of the most frequent tokens for batch scoring, built
+  // on first use, patched when the model learns or forgets and rebuilt
+  // once the model has learned twice as many messages
+  private volatile NaiveBayesHotBlock hotBlock;
+
+  // Scoring holds the read lock, learning and forgetting the write lock
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
   /********* ***********  ***********  ***********
    * NaiveBayes Class level configuration settings
@@ -29,141 +69,51 @@ public class NaiveBayes {
   */
   private int verbosity;
 
-  // private final String MODEL_SAVE_DIR = "./NB_models"; // disabled for now
-  private Double alpha = 1.0;   // see laplace smoothing (or additive smoothing)
-  private Double alphaD = 1.0;  // see laplace smoothing (or additive smoothing)
-
-  /**
-   * Inner Class. Tokens class because this is Java and over-verbosity is
-   * a requirement per the software license.
-   * @param <T> Generic for fun
-   */
-  private class Token <T> implements Comparable<Token<T>>{
-    T token;              // token symbol
-    String activeLabel;   // Needed for comparing token objects.
-    int total;            // sum of all label counts
-
-    HashMap<String, Integer> count;       // <label, frequency_count>
-    HashMap<String, Double> probability;  // <id, calculated_probability>
-
-    /**
-     * Default Token object constructor.
-     * @param token
-     */
-    Token(T token) {
-      this.token = token;
-      this.activeLabel = "spam"; // defaulting to spam for no good reason
-      this.total = 0;
-      this.count = new HashMap<>();
-      this.probability = new HashMap<>();
-    }
-
-
-    /**
-     * Increment the message/occurrence counter for specified label and total
-     * for the model.
-     * @param label String label of message the token is in
-     * @return int new count for the given label
-     */
-    int increment(String label){
-      this.total++;
-      String l = label.toLowerCase();
-      count.put(l, count.getOrDefault(l,0)+1);
-      return count.get(l);
-    }
-
-
-    /**
-     * Return the number of messages for the given label set that this token
-     * occurs in or 0 if there is no entry in the counts table.
-     * @param label String label of the message set
-     * @return int number of the label messages this token appears in
-     */
-    int getCount(String label){
-      return count.getOrDefault(label.toLowerCase(), 0);
-    }
-
+  private double alpha = 1.0;   // see laplace smoothing (or additive smoothing)
 
-    /**
-     * Return the total number of messages this token occurs in.
-     * Same as count['spam'] + count['ham']
-     * @return int total count of token in all labels
-     */
-    int getTotal(){ return total; }
+  private int maxHotTokens = 4096;  // size of the dense block of predictBatch
 
 
-    /**
-     * Inserts the given probability value under the given id.
-     * @param pTokenLabel String id of requested probability
-     * @param p Double probability associated with this label
-     */
-    void updateProbability(String pTokenLabel, Double p){
-      probability.put(pTokenLabel.toLowerCase(), p);
-    }
-
-
-    /**
-     * Returns a known probability for this token or 0.0 if the token wasn't
-     * found in the label's training set.
-     * Possible ids [pToken, pTokeSpam, pTokenHam]
-     * @param pTokenLabel String id of requested probability
-     * @return Double probability associated with this label
-     */
-    Double getProbabiltiy(String pTokenLabel){
-      return probability.getOrDefault(pTokenLabel.toLowerCase(), 0.0);
-    }
-
-
-    /**
-     * Changes the label that Token objects are compared in.
-     * @param label
-     * @return String new activeLabel
-     */
-    String setActiveLabel(String label){
-      this.activeLabel = label.toLowerCase();
-      return activeLabel;
-    }
+  /**
+   * False if the token is unknown or the count array doesn't have an entry
+   * for this label.
+   * @param tk
+   * @param label label id
+   * @return true if the token has a token count for this label
+   */
+  private Boolean tokenIsKnown(String tk, int label){
+    int id = termId(tk);
+    return (id != -1 && count(label, id) != 0);
+  }
 
 
-    /**
-     * Feature meant to be used in prediction. By selecting some number of the
-     * most 'interesting' tokens (those with the highest probability for the
-     * given label) the response time should improve without sacrificing
-     * accuracy too much.
-     * NOTE: Make sure activeLabel is set to the desired label before comparing.
-     * @param t other token object to compare this token with
-     * @return representative of the Token order based on polarity
-     */
-    @Override
-    public int compareTo(Token<T> t){
-      // if this is larger returns > 0
-      // if equal returns 0
-      // if this is less than t returns < 0
-      return (int) (t.probability.getOrDefault(activeLabel,0.0)
-                  - this.probability.getOrDefault(activeLabel,0.0));
-    }
+  /**
+   * Looks up a token in the vocabulary, or in the mapped snapshot.
+   * @param tk
+   * @return token id, or -1 if the token is unknown
+   */
+  private int termId(String tk){
+    return (snapshot != null) ? snapshot.termId(tk) : vocabulary.lookup(tk);
   }
 
 
   /**
-   * False if tokens map doesn't have an entry for this key (tk).
-   * @param tk
-   * @return true if there is a token object
+   * @param label label id
+   * @param id token id
+   * @return number of the label's messages the token occurs in
    */
-  private Boolean tokenIsKnown(String tk){
-    return (tokens.get(tk) != null);
+  private int count(int label, int id){
+    return (snapshot != null) ? snapshot.count(label, id) : tokenCounts[label][id];
   }
 
 
   /**
-   * Returns false if not found in the token map OR token.count map
-   * doesn't have an entry for this label.
-   * @param tk
-   * @param label
-   * @return true if there is a token object and has a token count for this label
+   * @param label label id
+   * @param id token id
+   * @return log(count + alpha)
    */
-  private Boolean tokenIsKnown(String tk, String label){
-    return (tokens.get(tk) != null && tokens.get(tk).getCount(label) != 0);
+  private double logCount(int label, int id){
+    return (snapshot != null) ? snapshot.logCount(label, id) : logCounts[label][id];
   }
 
 
@@ -179,11 +129,15 @@ public class NaiveBayes {
    * Clears prior data objects and resets control values to defaults
    */
   private void reset(){
-    tokens = new HashMap<>();
-    pLabel = new HashMap<>();
-    objectCounts = new HashMap<>();
-    objectCounts.put("totalObjects", 0);
-    objectCounts.put("totalTokens", 0);
+    vocabulary = new Vocabulary();
+    tokenCounts = new int[LABELS.length][1024];
+    logCounts = new double[LABELS.length][1024];
+    messageCounts = new int[LABELS.length];
+    tokenTotals = new long[LABELS.length];
+    logPriors = new double[LABELS.length];
+    logDenominators = new double[LABELS.length];
+    totalMessages = 0;
+    totalTokens = 0;
     verbosity = 0;
   }
 
@@ -204,13 +158,61 @@ public class NaiveBayes {
   }
 
 
+  /**
+   * Number of most frequent tokens predictBatch scores from a dense block,
+   * 0 to score every token through the vocabulary.
+   * @param maxHotTokens number of tokens
+   */
+  public void setHotTokens(int maxHotTokens){
+    this.maxHotTokens = Math.max(0, maxHotTokens);
+    hotBlock = null;
+  }
+
+
   /**
    * Train the model with a List of message objects.
    * @param messages message objects with tokens to process
+   * @throws IllegalStateException if no message of a label has been learned
    */
   public void train(List<TokenizedMessage> messages) {
-    messages.forEach(this::processMessage);
-    calculatePriors();
+    messages.forEach(m -> update(m, m.isSpam()));
+
+    lock.readLock().lock();
+    try {
+      requireEveryLabel();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  /**
+   * Learns one more message, e.g. when a user marks a message as spam.
+   * Only the counts of the message's tokens are touched, so this costs
+   * O(tokens in message); probabilities are derived from the counts when
+   * scoring, so there is no retraining over the corpus.
+   * @param message message object with tokens to learn
+   * @param spam true to learn the message as spam, false as ham
+   */
+  public void update(TokenizedMessage message, boolean spam) {
+    processMessage(message, (spam)? SPAM : HAM, 1);
+  }
+
+
+  /**
+   * Unlearns a message previously learned with the same label, e.g. to
+   * correct a label: update(m, false) then forget(m, true). Costs
+   * O(tokens in message). A label's last message can't be forgotten, as
+   * the prior of a label without messages is log(0), which would make
+   * every later prediction meaningless.
+   * @param message message object with tokens to unlearn
+   * @param spam the label the message was learned with - true if spam
+   * @throws IllegalArgumentException if the message can't have been learned
+   *                                  with this label, or is the last message
+   *                                  learned with it
+   */
+  public void forget(TokenizedMessage message, boolean spam) {
+    processMessage(message, (spam)? SPAM : HAM, -1);
   }
 
 
@@ -218,105 +220,401 @@ public class NaiveBayes {
    * Processes the tokens in a message and updates the proper tables for
    * future use.
    * @param message message object with tokens to process
+   * @param label id of the label to learn the message as
+   * @param delta 1 to learn the message, -1 to forget it
    */
-  private void processMessage(TokenizedMessage message) {
-    // I'm cheating here...
-    String label = (message.isSpam())? "spam" : "ham";
+  private void processMessage(TokenizedMessage message, int label, int delta) {
+    Collection<String> tks = tokensOf(message);
+
+    lock.writeLock().lock();
+    try {
+      thaw();
+
+      // a message can only be forgotten if all of its counts are there,
+      // and if the label keeps at least one message for its prior
+      if (delta < 0) {
+        boolean learned = messageCounts[label] > 0;
+        for (String tk : tks) {
+          learned = learned && tokenIsKnown(tk, label);
+        }
+        if (!learned) {
+          throw new IllegalArgumentException(message.getFILE_NAME()
+              + " was not learned as " + LABELS[label]);
+        }
+        if (messageCounts[label] == 1) {
+          throw new IllegalArgumentException("Can't forget " + message.getFILE_NAME()
+              + ", the last message learned as " + LABELS[label]);
+        }
+      }
 
-    // add an entry in the pLabels table if needed
-    this.pLabel.putIfAbsent(label, 0.0);
+      // update message counters
+      messageCounts[label] += delta;
+      totalMessages += delta;
 
-    // increment message counters
-    objectCounts.put(label, objectCounts.getOrDefault(label,0) +1);
-    objectCounts.put("totalObjects", objectCounts.get("totalObjects") +1);
+      tks.forEach(t->learn(t, label, delta));
 
-    // Learn each distinct token, if tagging is >= 2 tokens are prepended with
-    // (hopefully) unique strings for subject or body.
-    if(tagging < 2) {
-      message.getAllTokens().forEach(t->learn(t,label));
-    } else if(tagging >= 2) {
-      HashSet<String> tokenSet = new HashSet<>(message.getSubjectTokens());
-      tokenSet.forEach(t->learn("##subject##" + t,label));
+      updateDenominators();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
 
-      tokenSet = new HashSet<>(message.getBodyTokens());
-      tokenSet.forEach(t->learn("##body##" + t,label));
+
+  /**
+   * Tokens of a message as learned by the model. If tagging is >= 2 tokens
+   * are prepended with (hopefully) unique strings for subject or body.
+   * @param message message object with tokens
+   * @return distinct tokens
+   */
+  private Collection<String> tokensOf(TokenizedMessage message) {
+    if(tagging < 2) {
+      return message.getAllTokens();
     }
+
+    List<String> tks = new ArrayList<>();
+    new HashSet<>(message.getSubjectTokens()).forEach(t->tks.add("##subject##" + t));
+    new HashSet<>(message.getBodyTokens()).forEach(t->tks.add("##body##" + t));
+    return tks;
   }
 
 
   /**
-   * If this were to be used in a live environment it would need to learn
-   * from newly predicted messages. But here we will only be learning training
-   * messages.
+   * Adjusts the counts of a token for a label. Must hold the write lock.
    * @param tk    String the token to learn
-   * @param label String the class the token belongs to
+   * @param label int id of the class the token belongs to
+   * @param delta 1 to learn the token, -1 to forget it
    */
-  private void learn(String tk, String label){
-    if (!tokens.containsKey(tk)) tokens.put(tk, new Token<>(tk));
-    tokens.get(tk).increment(label);
-    objectCounts.put("totalTokens"+label, objectCounts.getOrDefault("totalTokens"+label,0) +1);
-    objectCounts.put("totalTokens", objectCounts.get("totalTokens") +1);
+  private void learn(String tk, int label, int delta){
+    int id = vocabulary.idOf(tk);
+    if (id >= tokenCounts[label].length) growCounts(id + 1);
+
+    int count = tokenCounts[label][id] += delta;
+    logCounts[label][id] = (count == 0) ? 0.0 : Math.log(count + alpha);
+    tokenTotals[label] += delta;
+    totalTokens += delta;
+
+    NaiveBayesHotBlock block = hotBlock;
+    if (block != null) block.patch(id, label, count, logCounts[label][id]);
   }
 
 
   /**
-   * Uses the default Laplace smoothing level.
+   * Grows the count arrays of all labels to hold at least the given number
+   * of tokens.
+   * @param minCapacity number of tokens
    */
-  private void calculatePriors(){
-    calculatePriors(this.alpha);
+  private void growCounts(int minCapacity){
+    int capacity = Math.max(minCapacity, tokenCounts[SPAM].length * 2);
+    for (int label = 0; label < LABELS.length; label++) {
+      tokenCounts[label] = Arrays.copyOf(tokenCounts[label], capacity);
+      logCounts[label] = Arrays.copyOf(logCounts[label], capacity);
+    }
   }
 
 
   /**
-   * Overloaded method to update learned probabilities.
-   * @param alpha level of Laplace smoothing to apply
+   * Copies a mapped snapshot to the vocabulary and count arrays, so the
+   * model can learn. Must hold the write lock.
    */
-  private void calculatePriors(Double alpha){
-    Integer totalObjects = objectCounts.get("totalObjects");
+  private void thaw(){
+    if (snapshot == null) return;
+
+    growCounts(snapshot.size());
+    for (int id = 0; id < snapshot.size(); id++) {
+      vocabulary.idOf(snapshot.term(id)); // ids are assigned in snapshot order
+      for (int label = 0; label < LABELS.length; label++) {
+        tokenCounts[label][id] = snapshot.count(label, id);
+        logCounts[label][id] = snapshot.logCount(label, id);
+      }
+    }
+    snapshot = null;
+  }
+
 
+  /**
+   * Updates the per-label terms shared by all tokens after the totals
+   * change: the priors and the denominators of p(token|label).
+   * Must hold the write lock.
+   */
+  private void updateDenominators(){
     // factor that smooths probability distribution
-    alphaD = alpha * objectCounts.get("totalTokens");
-
-    pLabel.keySet().forEach(label->pLabel
-        .put(label, 1.0 * objectCounts.get(label) / totalObjects)
-    );
-
-    for (Token<String> tk : tokens.values()){
-      // update token probability for each label
-      tk.count.forEach((label,count)-> tk.updateProbability("pToken"+label,
-          (count + alpha)/ (objectCounts.get(label) + alphaD) ));
-      // update probability of token in the model
-      tk.updateProbability("pToken",1.0 * tk.getTotal()/totalObjects);
+    double alphaD = alpha * totalTokens;
+
+    for (int label = 0; label < LABELS.length; label++) {
+      logPriors[label] = Math.log(1.0 * messageCounts[label] / totalMessages);
+      logDenominators[label] = Math.log(tokenTotals[label] + alphaD);
     }
   }
 
 
   /**
    * Process test messages and try to predict their labels based on the
-   * training data.
+   * training data. Messages are scored in one batch unless per-token
+   * diagnostics are printed.
    * @param messages ArrayList of messages to learn
    */
   public void test(List<TokenizedMessage> messages){
-    Map<TokenizedMessage, Map<String, Double>> predictions = new LinkedHashMap<>();
-    Map<String, Integer> accuracy = new HashMap<>();
-    Map<String, String[]> messageReport = new HashMap<>();
+    ConfusionMatrix matrix = new ConfusionMatrix();
+    double[] scores = (verbosity >= 3) ? null : scoreBatch(messages);
+
+    for (int m = 0; m < messages.size(); m++) {
+      TokenizedMessage message = messages.get(m);
+      double score;
+      if (scores != null) {
+        score = scores[m];
+      } else {
+        double[] p = predict(message.getAllTokens());
+        score = logistic(perToken(p[SPAM] - p[HAM], message));
+      }
 
-    messages.forEach(m->predictions.put( m, predict(m.getAllTokens()) ));
+      boolean spam = score > 0.5;
+      matrix.record(message.isSpam(), spam, score);
+      printMessageReport(message, spam);
+    }
 
-    predictions.forEach((m,p) -> {
-      String label = (m.isSpam()) ? "spam" : "ham";
-      String nbPredicted = (p.get("spam") > p.get("ham"))? "spam" : "ham";
+    printTestReport(matrix);
+  }
 
-      messageReport.put(m.getFILE_NAME(), new String[]{label,nbPredicted});
-      accuracy.put("total"+label, accuracy.getOrDefault("total"+label, 0) + 1);
 
-      if (nbPredicted.equals(label)) {
-        accuracy.put(label, accuracy.getOrDefault(label, 0) + 1);
+  /**
+   * Predict the label of a message.
+   * @param message tokenized message
+   * @return true if spam
+   */
+  @Override
+  public boolean predict(TokenizedMessage message){
+    double[] predictions = new double[LABELS.length];
+    predict(message.getAllTokens(), predictions);
+    return predictions[SPAM] > predictions[HAM];
+  }
+
+
+  /**
+   * Predict the labels of a batch of messages, as predict(TokenizedMessage)
+   * would. The most frequent tokens are scored from a dense block of their
+   * log-likelihoods, a blocked product over the whole batch, so only the
+   * rare tokens are looked up in the vocabulary. See setHotTokens(int).
+   * @param messages tokenized messages
+   * @return per message, true if spam
+   */
+  public boolean[] predictBatch(List<TokenizedMessage> messages){
+    double[] margins = margins(messages);
+    boolean[] spam = new boolean[margins.length];
+    for (int m = 0; m < spam.length; m++) {
+      spam[m] = margins[m] > 0.0;
+    }
+    return spam;
+  }
+
+
+  /**
+   * Spam score of a message, from 0 to 1: the logistic function of the
+   * margin of the decision of predict(TokenizedMessage) per distinct token
+   * of the message, so a message is spam if the score is above 0.5. The
+   * margin sums a log-likelihood ratio over every token, so it runs into
+   * the hundreds and the logistic function of it rounds to 0 or 1; per
+   * token, scores stay graded and rank messages by confidence.
+   * @param message tokenized message
+   * @return spam score
+   */
+  @Override
+  public double score(TokenizedMessage message){
+    double[] predictions = new double[LABELS.length];
+    predict(message.getAllTokens(), predictions);
+    return logistic(perToken(predictions[SPAM] - predictions[HAM], message));
+  }
+
+
+  /**
+   * Spam scores of a batch of messages, as score(TokenizedMessage) would
+   * give them, computed like predictBatch(List).
+   * @param messages tokenized messages
+   * @return per message, spam score
+   */
+  @Override
+  public double[] scoreBatch(List<TokenizedMessage> messages){
+    double[] scores = logOddsBatch(messages);
+    for (int m = 0; m < scores.length; m++) {
+      scores[m] = logistic(scores[m]);
+    }
+    return scores;
+  }
+
+
+  /**
+   * Log-odds of the spam scores of a batch of messages: the margins of
+   * the decisions per distinct token, as score(TokenizedMessage) takes
+   * the logistic function of them.
+   * @param messages tokenized messages
+   * @return per message, margin per token, positive for spam
+   */
+  @Override
+  public double[] logOddsBatch(List<TokenizedMessage> messages){
+    double[] logOdds = margins(messages);
+    for (int m = 0; m < logOdds.length; m++) {
+      logOdds[m] = perToken(logOdds[m], messages.get(m));
+    }
+    return logOdds;
+  }
+
+
+  /**
+   * Margins of the decisions of a batch of messages, the difference of the
+   * negated log probabilities of spam and ham; positive for spam.
+   * @param messages tokenized messages
+   * @return per message, margin
+   */
+  private double[] margins(List<TokenizedMessage> messages){
+    double[] margins = new double[messages.size()];
+    double[] predictions = new double[LABELS.length];
+
+    // tagged tokens aren't term ids of the messages
+    if (tagging >= 2 || maxHotTokens == 0) {
+      for (int m = 0; m < margins.length; m++) {
+        predict(messages.get(m).getAllTokens(), predictions);
+        margins[m] = predictions[SPAM] - predictions[HAM];
+      }
+      return margins;
+    }
+
+    double[][] scores = new double[messages.size()][LABELS.length];
+    boolean[] sparse = new boolean[messages.size()];
+    int[][] unknownIds = new int[messages.size()][];
+    lock.readLock().lock();
+    try {
+      requireEveryLabel();
+      NaiveBayesHotBlock block = hotBlock();
+      for (double[] score : scores) {
+        System.arraycopy(logPriors, 0, score, 0, LABELS.length);
+      }
+
+      // query vectors once, so both paths see the same term ids
+      int[][] termIds = new int[messages.size()][];
+      for (int m = 0; m < termIds.length; m++) {
+        termIds[m] = messages.get(m).getQueryTermIds();
+      }
+      block.score(messages, termIds, logDenominators, scores, sparse, unknownIds);
+
+      // rare tokens, only for messages that have some
+      for (int m = 0; m < margins.length; m++) {
+        if (sparse[m]) {
+          addSparse(messages.get(m), termIds[m], unknownIds[m], block, scores[m]);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    // negated log probabilities, as predict(List, double[]) gives them
+    for (int m = 0; m < margins.length; m++) {
+      margins[m] = scores[m][HAM] - scores[m][SPAM];
+    }
+    return margins;
+  }
+
+
+  /**
+   * Fails unless the model has learned messages of every label. The prior
+   * of a label without messages is log(0), so every prediction would go
+   * to the other label. Must hold the read lock.
+   * @throws IllegalStateException if a label has no messages
+   */
+  private void requireEveryLabel(){
+    for (int label = 0; label < LABELS.length; label++) {
+      if (messageCounts[label] == 0) {
+        throw new IllegalStateException("Naive Bayes has learned no messages labeled " + LABELS[label]
+            + ", it needs messages of every label to predict.");
+      }
+    }
+  }
+
+
+  /**
+   * @param margin margin of the decision on a message
+   * @param message the message
+   * @return the margin divided by the number of distinct tokens of the
+   *         message, which keeps its sign
+   */
+  private static double perToken(double margin, TokenizedMessage message){
+    return margin / Math.max(1, message.getAllTokens().size());
+  }
+
+
+  /**
+   * @param x margin
+   * @return 1 / (1 + e^-x)
+   */
+  private static double logistic(double x){
+    return 1.0 / (1.0 + Math.exp(-x));
+  }
+
+
+  /**
+   * The dense block of the current model, built if there is none or the
+   * model has learned twice as many messages since, so tokens that became
+   * frequent join it. Must hold the read lock, so the model can't change
+   * while building.
+   * @return the block
+   */
+  private NaiveBayesHotBlock hotBlock(){
+    NaiveBayesHotBlock block = hotBlock;
+    if (block != null && totalMessages <= 2L * block.getNumMessages()) return block;
+
+    int size = (snapshot != null) ? snapshot.size() : vocabulary.size();
+    int[] totals = new int[size];
+    for (int id = 0; id < size; id++) {
+      for (int label = 0; label < LABELS.length; label++) {
+        totals[id] += count(label, id);
+      }
+    }
+
+    int[] hot = NaiveBayesHotBlock.hottest(totals, size, maxHotTokens);
+    int[] hotCounts = new int[LABELS.length * hot.length];
+    double[] hotLogCounts = new double[LABELS.length * hot.length];
+    for (int slot = 0; slot < hot.length; slot++) {
+      for (int label = 0; label < LABELS.length; label++) {
+        hotCounts[label * hot.length + slot] = count(label, hot[slot]);
+        hotLogCounts[label * hot.length + slot] = logCount(label, hot[slot]);
+      }
+    }
+
+    block = new NaiveBayesHotBlock(hot, size, this::termId, hotCounts, hotLogCounts,
+        LABELS.length, totalMessages);
+    hotBlock = block;
+    return block;
+  }
+
+
+  /**
+   * Adds the log-likelihoods of the tokens of a message that aren't in the
+   * dense block, as the scoring hot path does. Must hold the read lock.
+   * @param message tokenized message
+   * @param termIds the message's query term ids, as the block was given them
+   * @param unknownIds model term ids of the tokens the message's vocabulary
+   *                   doesn't know, as the block looked them up
+   * @param block the dense block
+   * @param score accumulated scores, indexed by label id
+   */
+  private void addSparse(TokenizedMessage message, int[] termIds, int[] unknownIds,
+                         NaiveBayesHotBlock block, double[] score){
+    Vocabulary messageVocabulary = message.getVocabulary();
+    for (int termId : termIds) {
+      int id;
+      if (termId < 0) {
+        id = unknownIds[-1 - termId];
+        if (block.isHot(id)) continue;
+      } else {
+        if (block.slotOf(message, termId) >= 0) continue;
+        id = termId(messageVocabulary.termOf(termId));
       }
-    });
+      if (id == -1) continue; // skip tokens we haven't seen before
 
-    printMessageReport(messageReport);
-    printTestReport(predictions.size(), accuracy);
+      for (int label = 0; label < LABELS.length; label++) {
+        if (count(label, id) != 0) {
+          score[label] += logCount(label, id) - logDenominators[label];
+        }
+      }
+    }
   }
 
 
@@ -324,72 +622,89 @@ public class NaiveBayes {
    * Uses a List of tokens to evaluate for each label the probability the tokens
    * will appear as together in a message.
    * @param tks List of tokens
-   * @return Map of [label, probability]
+   * @return negated log probability, indexed by label id
    */
-  private Map<String, Double> predict(List<String> tks){
-    Map<String, Double> predictions = new HashMap<>(pLabel); //copies the keys(labels)
-    Map<String, Double[]> tokenCalculations = new LinkedHashMap<>();
+  private double[] predict(List<String> tks){
+    double[] predictions = new double[LABELS.length];
+    predict(tks, predictions);
 
-    // factor that smooths probability distribution
-    alphaD = alpha * objectCounts.get("totalTokens");
-
-    // calculate p(label|tokens) for all labels and store in predictions map
-    for (String label : predictions.keySet()) {
-      Double baseProb =  Math.log(1.0 * objectCounts.get(label)/objectCounts.get("totalObjects"));
-
-      predictions.put(label,
-          tks.stream() // can't do parallelStream() and retain ordered print data
-              .filter(tk->tokenIsKnown(tk, label)) // skip tokens we haven't seen before
-              .map(tk -> {
-                Map<String, Double> m = new HashMap<>();
-                m.put(tk, getTokenLabelCount(tk,label) + alpha);
-                return m;
-              })
-              .peek(m -> {
-                String id = m.keySet().toArray()[0].toString();
-                m.put(id, m.get(id)/(objectCounts.get("totalTokens"+label) + alphaD));
-              })
-              .reduce(baseProb,(labelProb,m)-> {
-                String id = m.keySet().toArray()[0].toString();
-                tokenCalculations.put(id, new Double[]{labelProb, m.get(id)});
-                return labelProb + Math.log(m.get(id));
-              }, Double::sum) * -1.0
-      );
-      System.out.println();
+    // per-token diagnostics are only collected when they will be printed
+    if (verbosity >= 3) {
+      printCalculationsReport(calculateTokenReport(tks));
     }
 
-    printCalculationsReport(tokenCalculations);
     return predictions;
   }
 
+
   /**
-   * Gets the number of times this token appears in this label's
-   * training messages
-   * @param token
-   * @param label
-   * @return number of times token appears in this label
+   * Scoring hot path: sums log p(token|label) = log(count + alpha) -
+   * log(labelTokenTotal + alphaD) of the tokens for each label in one pass
+   * over the tokens. Nothing is allocated. Tokens that never occurred in a
+   * label's training messages are skipped for that label.
+   * @param tks List of tokens
+   * @param predictions filled with the negated log probability, indexed by
+   *                    label id
    */
-  private Integer getTokenLabelCount(String token, String label){
-    return tokens.get(token).getCount(label);
+  private void predict(List<String> tks, double[] predictions){
+    lock.readLock().lock();
+    try {
+      requireEveryLabel();
+      for (int label = 0; label < LABELS.length; label++) {
+        predictions[label] = logPriors[label];
+      }
+
+      for (int i = 0, n = tks.size(); i < n; i++) {
+        int id = termId(tks.get(i));
+        if (id == -1) continue; // skip tokens we haven't seen before
+
+        for (int label = 0; label < LABELS.length; label++) {
+          if (count(label, id) != 0) {
+            predictions[label] += logCount(label, id) - logDenominators[label];
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    for (int label = 0; label < LABELS.length; label++) {
+      predictions[label] *= -1.0;
+    }
   }
 
+
   /**
-   * Gets the prior calculated p(token|label) probability value.
-   * @param token
-   * @param label
-   * @return probability of token occurring for this label
+   * Collects, for each label in turn, the accumulated probability before each
+   * known token and the token's probability. Later labels overwrite the
+   * entries of tokens known to earlier labels.
+   * @param tks List of tokens
+   * @return Map <token symbol, [accumulatedProb, tkProb]>
    */
-  Double getpTokenLabel(String token, String label){
-    return tokens.get(token).getProbabiltiy("pToken" + label);
+  private Map<String, Double[]> calculateTokenReport(List<String> tks){
+    Map<String, Double[]> tokenCalculations = new LinkedHashMap<>();
+
+    for (int label = 0; label < LABELS.length; label++) {
+      double labelProb = logPriors[label];
+      for (String tk : tks) {
+        if (!tokenIsKnown(tk, label)) continue;
+
+        double logLikelihood = logCount(label, termId(tk)) - logDenominators[label];
+        tokenCalculations.put(tk, new Double[]{labelProb, Math.exp(logLikelihood)});
+        labelProb += logLikelihood;
+      }
+    }
+
+    return tokenCalculations;
   }
 
   /**
    * Gets the prior calculated p(label) probability value.
-   * @param label
+   * @param label label id
    * @return probability of label occurring in this model
    */
-  Double getpLabel(String label){
-    return pLabel.get(label);
+  double getpLabel(int label){
+    return Math.exp(logPriors[label]);
   }
 
   //******************
@@ -402,6 +717,7 @@ public class NaiveBayes {
    */
   private void printCalculationsReport(Map<String, Double[]> tokenCalculations) {
     if (verbosity >= 3) {
+      System.out.println();
       tokenCalculations.forEach((tk,probs)-> {
         System.out.printf("%-16s[a] %-2.22e - [p] %-2.22f\n",
           ">" + tk + "<", probs[0], probs[1]);
@@ -410,110 +726,97 @@ public class NaiveBayes {
   }
 
   /**
-   * Prints evaluation statistics for each file tested.
-   * @param messageReport Map <fileName, label, predictedLabel>
+   * Prints evaluation statistics for a file tested.
+   * @param message the tested message
+   * @param spam predicted label - true if spam
    */
-  private void printMessageReport(Map<String, String[]> messageReport) {
+  private void printMessageReport(TokenizedMessage message, boolean spam) {
     if (verbosity >= 2) {
-      messageReport.forEach((fileName, labels) ->
-          System.out.printf("%-17s is %-6s NB says it is %-4s [ %7s ]\n",
-              fileName, labels[0] + ".", labels[1],
-              (labels[1].equals(labels[0])) ? "Correct" : "Wrong")
-      );
+      String label = LABELS[(message.isSpam()) ? SPAM : HAM];
+      String nbPredicted = LABELS[(spam) ? SPAM : HAM];
+      System.out.printf("%-17s is %-6s NB says it is %-4s [ %7s ]\n",
+          message.getFILE_NAME(), label + ".", nbPredicted,
+          (nbPredicted.equals(label)) ? "Correct" : "Wrong");
     }
   }
 
   /**
    * Prints statistics on the final results of testing.
-   * @param messageCount int number of messages processed in testing
-   * @param accuracy Map <label, labelMessageCount>
+   * @param matrix outcomes of testing
    */
-  private void printTestReport(int messageCount, Map<String, Integer> accuracy){
+  private void printTestReport(ConfusionMatrix matrix){
     if (verbosity >=1) {
-        System.out.printf("Spam Accuracy:   %3d / %-3d = %-2.1f %%\n",
-          accuracy.get("spam"), accuracy.get("totalspam"),
-          (accuracy.get("spam") * 100.0)/accuracy.get("totalspam"));
+      System.out.printf("Spam Accuracy:   %3d / %-3d = %-2.1f %%\n",
+          matrix.getTruePositives(), matrix.getActualSpam(),
+          (matrix.getTruePositives() * 100.0)/matrix.getActualSpam());
 
       System.out.printf("Ham Accuracy:    %3d / %-3d = %-2.1f %%\n",
-          accuracy.get("ham"), accuracy.get("totalham"),
-          (accuracy.get("ham") * 100.0)/accuracy.get("totalham"));
+          matrix.getTrueNegatives(), matrix.getActualHam(),
+          (matrix.getTrueNegatives() * 100.0)/matrix.getActualHam());
 
       System.out.printf("Model Accuracy:  %3d / %-3d = %-2.1f %%\n",
-          accuracy.get("spam")+accuracy.get("ham"), messageCount,
-          ((accuracy.get("spam")+accuracy.get("ham")) * 100.0)/messageCount);
+          matrix.getCorrect(), matrix.getTotal(),
+          matrix.getAccuracy() * 100.0);
+    }
+  }
+
+  //******************
+  // Model persistence
+  //******************
+
+  /**
+   * Saves the model to a compact binary snapshot file: the vocabulary as a
+   * sorted string table, the token counts and their logs per label and the
+   * message and token totals. See load(Path).
+   * @param file file to write
+   * @throws IOException if the file can't be written
+   */
+  public void save(Path file) throws IOException {
+    lock.writeLock().lock();
+    try {
+      thaw();
+
+      String[] terms = new String[vocabulary.size()];
+      for (int id = 0; id < terms.length; id++) {
+        terms[id] = vocabulary.termOf(id);
+      }
+      NaiveBayesSnapshot.write(file, alpha, terms, tokenCounts, logCounts,
+          messageCounts, tokenTotals, totalMessages, totalTokens);
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
-  /* **************************************************************************
-   * A model saving and loading feature was part of the original design,
-   * due to time constraints we were unable to complete it. Leaving this code
-   * for possible future use.
-   ---------------------------------------------------------------------------
+  /**
+   * Loads a model saved with save(Path). The file is memory-mapped and
+   * scored directly, nothing is rebuilt on the heap. It is only copied to
+   * the heap if the model learns or forgets a message.
+   * @param file snapshot file
+   * @return the trained model
+   * @throws IOException if the file can't be read, is not a snapshot or
+   *                     has no messages of a label
+   */
+  public static NaiveBayes load(Path file) throws IOException {
+    NaiveBayesSnapshot snapshot = NaiveBayesSnapshot.map(file);
+    if (snapshot.messageCounts.length != LABELS.length) {
+      throw new IOException("Model snapshot has " + snapshot.messageCounts.length
+          + " labels, expected " + LABELS.length + ".");
+    }
 
-  / **
-   * Constructor that reloads a previously trained model from a file store.
-   * @param modelName name used to identify the model and used for filenames.
-   * /
-  public NaiveBayes (String modelName){
-    // TO DO: load saved data into the appropriate fields
-    // TO DO: refactor to use a better external datastore rather than flatfiles
-    String prefix = (modelName != null) ? modelName.toLowerCase().strip() : "default";
+    for (int label = 0; label < LABELS.length; label++) {
+      if (snapshot.messageCounts[label] == 0) {
+        throw new IOException("Model snapshot has no messages labeled " + LABELS[label] + ".");
+      }
+    }
 
-    // initialize empty maps
-    reset();
-    loadModel(modelName);
-  }
-
-   void loadModel (String modelName) {
-   // try to load the saved maps
-   Stream<String> fileStream;
-   try {
-
-   fileStream = Files.lines(Paths.get("$filename.ham"));
-   fileStream.forEachOrdered(line -> {
-   String s[] = line.split(",");
-   hamCounts.put(s[0], Integer.valueOf(s[1]));
-   });
-
-   // load the probabilities map
-   fileStream = Files.lines(Paths.get("$filename.probs"));
-   fileStream.forEachOrdered(line -> {
-   String s[] = line.split(",");
-   probabilities.put(s[0], Double.valueOf(s[1]));
-   });
-
-   fileStream.close();
-   } catch (IOException e) {
-   e.printStackTrace();
-   }
-   }
-
-   void saveModel (String modelName) {
-   // try to the current model
-   // Java is still an ugly horrible language...
-
-   Stream<String> fileStream;
-   try {
-
-   // create the save directory if it doesn't already exist
-   if (!Files.exists(Paths.get(MODEL_SAVE_DIR)))
-   Files.createDirectory(Paths.get(MODEL_SAVE_DIR));
-
-   // TODO: this doesn't have the correct output format
-   // save the ham countsMap
-   Files.writeString(Paths.get(MODEL_SAVE_DIR,"$filename.ham"),
-            hamCounts.toString());
-
-   // write the spam countsMap to the file
-   Files.writeString(Paths.get(MODEL_SAVE_DIR,"$filename.spam"),
-            spamCounts.toString());
-
-   // write the probabilities map to the file
-   Files.writeString(Paths.get(MODEL_SAVE_DIR,"$filename.ham"),
-          probabilities.toString());
-   } catch (IOException e) {
-   e.printStackTrace();
-   }
-   }
-   * **************************************************************************/
-}
\ No newline at end of file
+    NaiveBayes nb = new NaiveBayes();
+    nb.snapshot = snapshot;
+    nb.alpha = snapshot.alpha;
+    nb.messageCounts = snapshot.messageCounts.clone();
+    nb.tokenTotals = snapshot.tokenTotals.clone();
+    nb.totalMessages = snapshot.totalMessages;
+    nb.totalTokens = snapshot.totalTokens;
+    nb.updateDenominators();
+    return nb;
+  }
+}
@@ -0,0 +1,375 @@
+package classifier.classifiers.core;
+
+import classifier.messagetypes.TokenizedMessage;
+import classifier.utils.Vocabulary;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+
+/**
+ * Dense block of the log counts of the most frequent tokens of a Naive
+ * Bayes model, for scoring messages in batches.
+ *
+ * A few thousand tokens make up most token occurrences, so their
+ * log(count + alpha) are copied to one contiguous array, label by label,
+ * and addressed by slot instead of by a vocabulary lookup. A message is
+ * encoded as a bitset over the slots of its hot tokens, through a table
+ * from the term ids of the message's vocabulary to slots, so encoding does
+ * no hashing for tokens the vocabulary knows. A batch is scored as a blocked product of the bitset matrix
+ * and the block: for each 64 slots, every message of a block of messages
+ * adds the log counts of its set bits, while those stay in cache, and
+ * subtracts the label's log denominator once per set bit the label has a
+ * count for.
+ *
+ * Rare tokens are left to the sparse path of the model. The hot tokens are
+ * resolved to slots through the model's own vocabulary, the message term
+ * ids through their tokens, so the shared vocabulary is never touched. The
+ * denominators are the model's current ones, so when the model learns or
+ * forgets a message only the slots of its tokens are patched. Reads hold
+ * the model's read lock, patches its write lock.
+ */
+class NaiveBayesHotBlock {
+
+    /**
+     * Messages scored together per pass over the block.
+     */
+    private static final int MESSAGE_BLOCK = 64;
+
+    /**
+     * Slot table entry of a term id not resolved yet.
+     */
+    private static final int UNRESOLVED = -2;
+
+    private final int numLabels;
+
+    private final int numHot;
+
+    /**
+     * Words of a message bitset.
+     */
+    private final int numWords;
+
+    /**
+     * Slot of each model term id, -1 for tokens that aren't hot. Term ids
+     * past the end were added to the model later.
+     */
+    private final int[] slotsOfModelIds;
+
+    /**
+     * Model term id of a token, -1 if the model doesn't know it.
+     */
+    private final ToIntFunction<String> modelIds;
+
+    /**
+     * log(count + alpha), numHot entries per label, 0.0 where the token
+     * never occurred in the label's messages.
+     */
+    private final double[] logCounts;
+
+    /**
+     * Bitsets of the slots with a count, numWords words per label.
+     */
+    private final long[] counted;
+
+    /**
+     * Number of messages the model had learned when the block was built.
+     */
+    private final int numMessages;
+
+    /**
+     * Slots of the term ids of the last vocabulary messages came with.
+     */
+    private volatile SlotTable slotTable;
+
+    /**
+     * Slots of the term ids of one vocabulary, each resolved through its
+     * token the first time a message has it. Entries are written by many
+     * readers at once, but every writer writes the same slot.
+     */
+    private static class SlotTable {
+
+        private final Vocabulary vocabulary;
+
+        /**
+         * Slot of each term id, -1 for tokens that aren't hot, UNRESOLVED
+         * before first use. Term ids past the end were added to the
+         * vocabulary after the table was built.
+         */
+        private final int[] slots;
+
+        SlotTable(Vocabulary vocabulary, int[] slots) {
+            this.vocabulary = vocabulary;
+            this.slots = slots;
+        }
+    }
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor.
+     * @param hotIds model term ids of the hot tokens by slot
+     * @param modelSize number of model term ids
+     * @param modelIds model term id of a token, -1 if unknown
+     * @param counts counts of the hot tokens, hotIds.length entries per label
+     * @param logCounts log(count + alpha) parallel to counts, 0.0 where the count is 0
+     * @param numLabels number of labels
+     * @param numMessages number of messages the model has learned
+     */
+    NaiveBayesHotBlock(int[] hotIds, int modelSize, ToIntFunction<String> modelIds,
+                       int[] counts, double[] logCounts, int numLabels, int numMessages) {
+        this.numLabels = numLabels;
+        this.numHot = hotIds.length;
+        this.numWords = (numHot + 63) >>> 6;
+        this.modelIds = modelIds;
+        this.logCounts = logCounts;
+        this.numMessages = numMessages;
+
+        this.slotsOfModelIds = new int[modelSize];
+        Arrays.fill(slotsOfModelIds, -1);
+        for (int slot = 0; slot < numHot; slot++) {
+            slotsOfModelIds[hotIds[slot]] = slot;
+        }
+
+        this.counted = new long[numLabels * numWords];
+        for (int label = 0; label < numLabels; label++) {
+            for (int slot = 0; slot < numHot; slot++) {
+                if (counts[label * numHot + slot] != 0) {
+                    counted[label * numWords + (slot >>> 6)] |= 1L << slot;
+                }
+            }
+        }
+    }
+
+
+    //-------------------------------+
+    //     PACKAGE STATIC METHODS   /
+    //-----------------------------+
+
+    /**
+     * Ids of the most frequent tokens.
+     * @param totals number of messages each token id occurs in, over all labels
+     * @param size number of token ids
+     * @param maxHot maximum number of hot tokens
+     * @return token ids by descending total, tokens that never occur excluded
+     */
+    static int[] hottest(int[] totals, int size, int maxHot) {
+
+        // (total, id) packed so one primitive sort orders by total.
+        long[] packed = new long[size];
+        int n = 0;
+        for (int id = 0; id < size; id++) {
+            if (totals[id] > 0) {
+                packed[n++] = ((long) totals[id] << 32) | id;
+            }
+        }
+        Arrays.sort(packed, 0, n);
+
+        int[] hot = new int[Math.min(maxHot, n)];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = (int) packed[n - 1 - i];
+        }
+        return hot;
+    }
+
+
+    //------------------------+
+    //     PACKAGE METHODS   /
+    //----------------------+
+
+    /**
+     * Add the log-likelihoods of the hot tokens of a batch of messages to
+     * their scores.
+     * @param messages the batch
+     * @param termIds per message, its query term ids
+     * @param logDenominators per label, log of the denominator of p(token|label)
+     * @param scores per message, numLabels accumulated scores
+     * @param sparse receives per message whether it has tokens the block
+     *               didn't score, which are left to the sparse path
+     * @param unknownIds receives per message the model term ids of the
+     *                   tokens its vocabulary doesn't know, indexed by
+     *                   -1 - term id, or null if there are none
+     */
+    void score(List<TokenizedMessage> messages, int[][] termIds, double[] logDenominators,
+               double[][] scores, boolean[] sparse, int[][] unknownIds) {
+        long[] bits = new long[Math.min(MESSAGE_BLOCK, messages.size()) * numWords];
+
+        for (int from = 0; from < messages.size(); from += MESSAGE_BLOCK) {
+            int to = Math.min(from + MESSAGE_BLOCK, messages.size());
+
+            Arrays.fill(bits, 0L);
+            for (int m = from; m < to; m++) {
+                sparse[m] = encode(messages.get(m), termIds[m], bits, (m - from) * numWords, unknownIds, m);
+            }
+
+            // Bitset block times log count block, 64 slots at a time.
+            for (int word = 0; word < numWords; word++) {
+                int base = word << 6;
+                for (int m = from; m < to; m++) {
+                    long set = bits[(m - from) * numWords + word];
+                    if (set == 0) continue;
+
+                    double[] score = scores[m];
+                    for (int label = 0; label < numLabels; label++) {
+                        int matched = Long.bitCount(set & counted[label * numWords + word]);
+                        score[label] -= matched * logDenominators[label];
+                    }
+                    while (set != 0) {
+                        int slot = base + Long.numberOfTrailingZeros(set);
+                        for (int label = 0; label < numLabels; label++) {
+                            score[label] += logCounts[label * numHot + slot];
+                        }
+                        set &= set - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the log count of a token for a label after the model learned
+     * or forgot a message. Tokens that aren't hot are ignored.
+     * @param modelId model term id of the token
+     * @param label label id
+     * @param count the token's count for the label
+     * @param logCount log(count + alpha), 0.0 if the count is 0
+     */
+    void patch(int modelId, int label, int count, double logCount) {
+        int slot = (modelId < slotsOfModelIds.length) ? slotsOfModelIds[modelId] : -1;
+        if (slot < 0) return;
+
+        logCounts[label * numHot + slot] = logCount;
+        if (count != 0) {
+            counted[label * numWords + (slot >>> 6)] |= 1L << slot;
+        } else {
+            counted[label * numWords + (slot >>> 6)] &= ~(1L << slot);
+        }
+    }
+
+    /**
+     * Slot of a term id of the vocabulary of a message, -1 if the token
+     * isn't hot or can't be told from the term id, e.g. a negative id of a
+     * token the vocabulary doesn't know.
+     * @param message message the term id belongs to
+     * @param termId term id
+     * @return slot, or -1
+     */
+    int slotOf(TokenizedMessage message, int termId) {
+        return (termId >= 0) ? slotOf(message.getVocabulary(), termId) : -1;
+    }
+
+    /**
+     * @param modelId model term id
+     * @return true if the token is hot
+     */
+    boolean isHot(int modelId) {
+        return modelId >= 0 && modelId < slotsOfModelIds.length && slotsOfModelIds[modelId] >= 0;
+    }
+
+    int size() {
+        return numHot;
+    }
+
+    /**
+     * @return number of messages the model had learned when the block was built
+     */
+    int getNumMessages() {
+        return numMessages;
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Set the bits of the hot tokens of a message. Tokens the message's
+     * vocabulary doesn't know have negative term ids local to the message,
+     * so they are looked up in the model by their token every time, and
+     * their model term ids are kept for the sparse path.
+     * @param message the message
+     * @param termIds the message's query term ids, unknown tokens first
+     * @param bits bitsets
+     * @param offset first word of the message's bitset
+     * @param unknownIds receives the model term ids of the unknown tokens
+     * @param m index of the message in unknownIds
+     * @return true if the message has tokens that aren't hot
+     */
+    private boolean encode(TokenizedMessage message, int[] termIds, long[] bits, int offset,
+                           int[][] unknownIds, int m) {
+        Vocabulary vocabulary = message.getVocabulary();
+        int numUnknown = 0;
+        while (numUnknown < termIds.length && termIds[numUnknown] < 0) {
+            numUnknown++;
+        }
+        unknownIds[m] = (numUnknown == 0) ? null : new int[numUnknown];
+
+        boolean sparse = false;
+        for (int termId : termIds) {
+            int slot;
+            if (termId >= 0) {
+                slot = slotOf(vocabulary, termId);
+            } else {
+                int modelId = modelIds.applyAsInt(message.getUnknownTerm(termId));
+                unknownIds[m][-1 - termId] = modelId;
+                slot = isHot(modelId) ? slotsOfModelIds[modelId] : -1;
+            }
+            if (slot < 0) {
+                sparse = true;
+            } else {
+                bits[offset + (slot >>> 6)] |= 1L << slot;
+            }
+        }
+        return sparse;
+    }
+
+    /**
+     * Slot of a term id of a vocabulary, resolved through its token
+     * the first time.
+     * @param vocabulary the vocabulary
+     * @param termId term id, at least 0
+     * @return slot, or -1 if the token isn't hot
+     */
+    private int slotOf(Vocabulary vocabulary, int termId) {
+        int[] slots = slotTable(vocabulary, termId).slots;
+        int slot = slots[termId];
+        if (slot == UNRESOLVED) {
+            int modelId = modelIds.applyAsInt(vocabulary.termOf(termId));
+            slot = isHot(modelId) ? slotsOfModelIds[modelId] : -1;
+            slots[termId] = slot;
+        }
+        return slot;
+    }
+
+    /**
+     * Slot table of a vocabulary holding a term id. Messages usually share
+     * one vocabulary, so only the last table is kept. It is grown to the
+     * vocabulary's size when a term id is past its end, keeping the slots
+     * resolved so far.
+     * @param vocabulary the vocabulary
+     * @param termId term id, at least 0
+     * @return the table
+     */
+    private SlotTable slotTable(Vocabulary vocabulary, int termId) {
+        SlotTable table = slotTable;
+        if (table != null && table.vocabulary == vocabulary && termId < table.slots.length) {
+            return table;
+        }
+
+        int size = Math.max(termId + 1, vocabulary.size());
+        int[] slots;
+        if (table != null && table.vocabulary == vocabulary) {
+            slots = Arrays.copyOf(table.slots, size);
+            Arrays.fill(slots, table.slots.length, size, UNRESOLVED);
+        } else {
+            slots = new int[size];
+            Arrays.fill(slots, UNRESOLVED);
+        }
+        table = new SlotTable(vocabulary, slots);
+        slotTable = table;
+        return table;
+    }
+}
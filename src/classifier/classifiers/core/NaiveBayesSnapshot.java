@@ -0,0 +1,278 @@
+package classifier.classifiers.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Binary snapshot of a trained Naive Bayes model, memory-mapped for scoring.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int    magic "NBM1", int version
+ *   double alpha
+ *   int    number of labels, int total messages, long total tokens
+ *   int    vocabulary size
+ *   per label: int message count, long token total
+ *   int[vocabulary size + 1]  offsets of the terms in the string table
+ *   per label: int[vocabulary size]  token counts
+ *   per label: double[vocabulary size]  log(count + alpha), 0.0 where the count is 0
+ *   int[hash capacity]  term ids by hash slot, -1 where empty
+ *   byte[]  string table, UTF-8 terms sorted by their bytes
+ * </pre>
+ * Term ids are positions in the sorted string table. A token is looked up
+ * through the mapped hash index, comparing its bytes with about one term,
+ * and its counts and log counts are read from the mapped arrays, so scoring
+ * a mapped model costs about what scoring the model on the heap does.
+ * Nothing is rebuilt on the heap when loading.
+ * Files are limited to 2 GB by the size of a single mapping.
+ */
+class NaiveBayesSnapshot {
+
+    /**
+     * "NBM1".
+     */
+    private static final int MAGIC = 0x4E424D31;
+
+    private static final int VERSION = 2;
+
+    final double alpha;
+    final int totalMessages;
+    final long totalTokens;
+    final int[] messageCounts;
+    final long[] tokenTotals;
+
+    /**
+     * Number of terms.
+     */
+    private final int size;
+
+    /**
+     * Token counts per label.
+     */
+    private final IntBuffer[] counts;
+
+    /**
+     * log(count + alpha) per label, 0.0 where the count is 0.
+     */
+    private final DoubleBuffer[] logCounts;
+
+    /**
+     * The sorted terms.
+     */
+    private final MappedTermTable terms;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor over a mapped snapshot file.
+     * @param buffer the mapped file
+     * @throws IOException if the file is not a snapshot
+     */
+    private NaiveBayesSnapshot(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a Naive Bayes model snapshot.");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported Naive Bayes model snapshot version " + version + ".");
+        }
+
+        // Every section is checked against the file before it's read.
+        ByteBuffer header = slice(buffer, 8 + 4 + 4 + 8 + 4);
+        alpha = header.getDouble();
+        int numLabels = header.getInt();
+        totalMessages = header.getInt();
+        totalTokens = header.getLong();
+        size = header.getInt();
+        if (numLabels < 0 || size < 0) {
+            throw corrupt();
+        }
+
+        ByteBuffer labelTotals = slice(buffer, (4L + 8) * numLabels);
+        messageCounts = new int[numLabels];
+        tokenTotals = new long[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            messageCounts[label] = labelTotals.getInt();
+            tokenTotals[label] = labelTotals.getLong();
+        }
+
+        IntBuffer offsets = slice(buffer, 4L * (size + 1)).asIntBuffer();
+        counts = new IntBuffer[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            counts[label] = slice(buffer, 4L * size).asIntBuffer();
+        }
+        logCounts = new DoubleBuffer[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            logCounts[label] = slice(buffer, 8L * size).asDoubleBuffer();
+        }
+        IntBuffer hashSlots = slice(buffer, 4L * MappedTermTable.hashCapacity(size)).asIntBuffer();
+        terms = new MappedTermTable(offsets, slice(buffer, offsets.get(size)), hashSlots);
+        if (!terms.isValid()) {
+            throw corrupt();
+        }
+    }
+
+
+    //---------------------------+
+    //     STATIC METHODS       /
+    //-------------------------+
+
+    /**
+     * Write a snapshot.
+     * @param file file to write
+     * @param alpha Laplace smoothing of the model
+     * @param terms the vocabulary, term id = position
+     * @param tokenCounts token counts per label, indexed by term id
+     * @param logCounts log(count + alpha) per label, indexed by term id, 0.0 where the count is 0
+     * @param messageCounts message counts per label
+     * @param tokenTotals token totals per label
+     * @param totalMessages total number of messages
+     * @param totalTokens total number of tokens
+     * @throws IOException if the file can't be written
+     */
+    static void write(Path file, double alpha, String[] terms, int[][] tokenCounts,
+                      double[][] logCounts, int[] messageCounts, long[] tokenTotals,
+                      int totalMessages, long totalTokens) throws IOException {
+
+        // Sort the terms by their UTF-8 bytes, remembering the original ids.
+        byte[][] bytes = new byte[terms.length][];
+        int[] order = MappedTermTable.sort(terms, bytes);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)))) {
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(alpha);
+            out.writeInt(messageCounts.length);
+            out.writeInt(totalMessages);
+            out.writeLong(totalTokens);
+            out.writeInt(terms.length);
+            for (int label = 0; label < messageCounts.length; label++) {
+                out.writeInt(messageCounts[label]);
+                out.writeLong(tokenTotals[label]);
+            }
+
+            // Offsets.
+            MappedTermTable.writeOffsets(out, bytes, order);
+
+            // Counts.
+            for (int[] labelCounts : tokenCounts) {
+                for (int id : order) {
+                    out.writeInt(labelCounts[id]);
+                }
+            }
+
+            // Log counts.
+            for (double[] labelLogCounts : logCounts) {
+                for (int id : order) {
+                    out.writeDouble(labelLogCounts[id]);
+                }
+            }
+
+            // Hash index and string table.
+            MappedTermTable.writeHashSlots(out, terms, order);
+            MappedTermTable.writeStrings(out, bytes, order);
+        }
+    }
+
+    /**
+     * Map a snapshot file.
+     * @param file snapshot file
+     * @return the mapped snapshot
+     * @throws IOException if the file can't be read or is not a snapshot
+     */
+    static NaiveBayesSnapshot map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new NaiveBayesSnapshot(buffer);
+        }
+    }
+
+
+    //------------------------+
+    //     PACKAGE METHODS   /
+    //----------------------+
+
+    /**
+     * @return number of terms
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Look up a token. Allocates nothing for ASCII tokens.
+     * @param token the token
+     * @return term id, or -1 if unknown
+     */
+    int termId(String token) {
+        return terms.termId(token);
+    }
+
+    /**
+     * @param id term id
+     * @return the term
+     */
+    String term(int id) {
+        return terms.term(id);
+    }
+
+    /**
+     * @param label label id
+     * @param id term id
+     * @return number of the label's messages the term occurs in
+     */
+    int count(int label, int id) {
+        return counts[label].get(id);
+    }
+
+    /**
+     * @param label label id
+     * @param id term id
+     * @return log(count + alpha), 0.0 where the count is 0
+     */
+    double logCount(int label, int id) {
+        return logCounts[label].get(id);
+    }
+
+
+    //------------------------+
+    //     PRIVATE METHODS   /
+    //----------------------+
+
+    /**
+     * Slice the next section off the mapped file, advancing it.
+     * @param buffer the mapped file
+     * @param length length of the section in bytes
+     * @return the section
+     * @throws IOException if the file ends before the section does
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, long length) throws IOException {
+        ByteBuffer slice = MappedTermTable.slice(buffer, length);
+        if (slice == null) {
+            throw corrupt();
+        }
+        return slice;
+    }
+
+    /**
+     * @return the error of a snapshot whose sections don't fit the file
+     */
+    private static IOException corrupt() {
+        return new IOException("Corrupt Naive Bayes model snapshot.");
+    }
+}
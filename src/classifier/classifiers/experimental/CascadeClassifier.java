@@ -0,0 +1,212 @@
+package classifier.classifiers.experimental;
+
+import classifier.classifiers.interfaces.GenericClassifier;
+import classifier.messagetypes.TokenizedMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Two-stage cascade of classifiers: a cheap classifier, e.g. Naive Bayes,
+ * scores every message, and only the messages it is uncertain about are
+ * escalated to an expensive one, e.g. KNN.
+ *
+ * Confidence is measured in log-odds of the cheap classifier's spam score,
+ * log(score / (1 - score)), which is 0 at the decision boundary. A message
+ * is escalated if its log-odds are within the band around 0, so a band of
+ * 0 never escalates and an infinite band always does. The log-odds come
+ * from the cheap classifier's logOddsBatch(), for Naive Bayes its margins
+ * per token, so they stay finite where a score rounds to 0 or 1.
+ */
+public class CascadeClassifier implements GenericClassifier {
+
+    /**
+     * Classifier scoring every message.
+     */
+    private final GenericClassifier cheap;
+
+    /**
+     * Classifier scoring the uncertain messages.
+     */
+    private final GenericClassifier expensive;
+
+    /**
+     * Half width of the band of escalated log-odds.
+     */
+    private final double band;
+
+    /**
+     * Counts of scored and escalated messages, accumulated concurrently.
+     * Escalated messages are counted by the side of the decision boundary
+     * the cheap classifier put them on.
+     */
+    private final LongAdder numScored = new LongAdder();
+
+    private final LongAdder numEscalatedSpam = new LongAdder();
+
+    private final LongAdder numEscalatedHam = new LongAdder();
+
+    //---------------------+
+    //    CONSTRUCTORS    /
+    //-------------------+
+
+    /**
+     * Constructor.
+     * @param cheap classifier scoring every message
+     * @param expensive classifier scoring the uncertain messages
+     * @param band messages whose cheap log-odds are within [-band, band] are escalated
+     */
+    public CascadeClassifier(GenericClassifier cheap, GenericClassifier expensive, double band) {
+        if (!(band >= 0.0)) {
+            throw new IllegalArgumentException("band must be at least 0: " + band);
+        }
+        this.cheap = cheap;
+        this.expensive = expensive;
+        this.band = band;
+    }
+
+
+    //-----------------------+
+    //    PUBLIC METHODS    /
+    //---------------------+
+
+    /**
+     * Predict label for message.
+     * @param tkTestMessage tokenized message
+     * @return true if message labeled as spam
+     */
+    @Override
+    public boolean predict(TokenizedMessage tkTestMessage) {
+        return score(tkTestMessage) > 0.5;
+    }
+
+    /**
+     * Spam score of the cheap classifier, or of the expensive one if the
+     * message is escalated.
+     * @param tkTestMessage tokenized message
+     * @return spam score
+     */
+    @Override
+    public double score(TokenizedMessage tkTestMessage) {
+        return scoreBatch(Collections.singletonList(tkTestMessage))[0];
+    }
+
+    /**
+     * Spam scores of a batch of messages. The cheap classifier scores the
+     * batch, then the expensive one scores the uncertain messages of the
+     * batch as one batch.
+     * @param tkMessages list of tokenized messages
+     * @return spam scores in the order of the list
+     */
+    @Override
+    public double[] scoreBatch(List<TokenizedMessage> tkMessages) {
+        double[] logOdds = cheap.logOddsBatch(tkMessages);
+        double[] scores = new double[logOdds.length];
+
+        List<Integer> uncertain = new ArrayList<>();
+        List<TokenizedMessage> escalated = new ArrayList<>();
+        int numSpam = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (isUncertain(logOdds[i])) {
+                uncertain.add(i);
+                escalated.add(tkMessages.get(i));
+                if (logOdds[i] > 0.0) { numSpam++; }
+            } else {
+                scores[i] = logistic(logOdds[i]);
+            }
+        }
+        if (!escalated.isEmpty()) {
+            double[] expensiveScores = expensive.scoreBatch(escalated);
+            for (int i = 0; i < expensiveScores.length; i++) {
+                scores[uncertain.get(i)] = expensiveScores[i];
+            }
+        }
+
+        numScored.add(scores.length);
+        numEscalatedSpam.add(numSpam);
+        numEscalatedHam.add(escalated.size() - numSpam);
+        return scores;
+    }
+
+    /**
+     * Print the escalation rate and the share of escalated messages on
+     * the spam side of the decision boundary, over the messages scored so
+     * far.
+     */
+    public void printEscalationReport() {
+        System.out.println();
+        System.out.println(String.format("%-25s %d of %d", "Escalated: ", getNumEscalated(), getNumScored()));
+        System.out.println(String.format("%-25s %f", "Escalation Rate: ", getEscalationRate()));
+        System.out.println(String.format("%-25s %f", "Spam Side: ", getSpamEscalationRate()));
+    }
+
+
+    //------------------------+
+    //    PRIVATE METHODS    /
+    //----------------------+
+
+    /**
+     * @param logOdds log-odds of the cheap classifier's spam score
+     * @return true if the log-odds are within the band
+     */
+    private boolean isUncertain(double logOdds) {
+        return band > 0.0 && Math.abs(logOdds) <= band;
+    }
+
+    /**
+     * @param logOdds log-odds
+     * @return the spam score of the log-odds
+     */
+    private static double logistic(double logOdds) {
+        return 1.0 / (1.0 + Math.exp(-logOdds));
+    }
+
+
+    //--------------------------+
+    //    GETTERS & SETTERS    /
+    //------------------------+
+
+    public double getBand() {
+        return band;
+    }
+
+    /**
+     * @return number of messages scored
+     */
+    public long getNumScored() {
+        return numScored.sum();
+    }
+
+    /**
+     * @return number of messages escalated to the expensive classifier
+     */
+    public long getNumEscalated() {
+        return numEscalatedSpam.sum() + numEscalatedHam.sum();
+    }
+
+    /**
+     * @return number of escalated messages the cheap classifier called spam
+     */
+    public long getNumEscalatedSpam() {
+        return numEscalatedSpam.sum();
+    }
+
+    /**
+     * @return fraction of scored messages escalated to the expensive classifier
+     */
+    public double getEscalationRate() {
+        long scored = getNumScored();
+        return (scored == 0) ? 0.0 : getNumEscalated() / (double) scored;
+    }
+
+    /**
+     * @return fraction of the escalated messages the cheap classifier called spam
+     */
+    public double getSpamEscalationRate() {
+        long escalated = getNumEscalated();
+        return (escalated == 0) ? 0.0 : getNumEscalatedSpam() / (double) escalated;
+    }
+}
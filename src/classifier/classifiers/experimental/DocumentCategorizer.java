@@ -29,6 +29,19 @@ public class DocumentCategorizer implements GenericClassifier {
      */
     private Path tempDir;
 
+    /**
+     * The model created by the train(File) method, kept in memory
+     * and shared by all categorizers.
+     */
+    private DoccatModel model;
+
+    /**
+     * Categorizer per scoring thread. DocumentCategorizerME is not
+     * thread-safe, but instances are cheap over an already loaded model.
+     */
+    private final ThreadLocal<DocumentCategorizerME> categorizers =
+            ThreadLocal.withInitial(() -> new DocumentCategorizerME(model));
+
     /**
      * Map of statistics of training data.
      */
@@ -115,151 +128,34 @@ public class DocumentCategorizer implements GenericClassifier {
      * @return true is message labeled as spam
      */
     public boolean predict(TokenizedMessage tkMessage) {
-
-        // Get all tokens from messages, convert to array of
-        // strings which is required by DocumentCategorizerME.
-        List<String> allTokens = tkMessage.getAllTokens();
-        String[] allTokensArr = allTokens.toArray(new String[0]);
-
-        // Get the model created by the train(File) method.
-        InputStream modelIn = null;
-        try {
-            modelIn = new FileInputStream(new File(tempDir + "/en-email.model"));
-        } catch (IOException ex) {
-            // TODO Handle exception...
-        }
-
-        // Wrap input stream in the model class required by DocumentCategorizerME.
-        DoccatModel model = null;
-        try {
-            model = new DoccatModel(modelIn);
-        } catch (IOException ex) {
-            // TODO Handle exception...
-            System.err.println(ex);
-        }
-
-        // Create instance of the categorizer and run it.
-        // TODO Move this to the class so it's only created once?
-        DocumentCategorizerME categorizer = new DocumentCategorizerME(model);
-        double[] outcomes = categorizer.categorize(allTokensArr);
-
-        // Store outcome data in a map.
-        Map<String, Double> categoryOutcomes = new HashMap<>();
-        for (int i = 0; i < categorizer.getNumberOfCategories(); i++) {
-            categoryOutcomes.put(categorizer.getCategory(i), outcomes[i]);
-
-            // TODO Add stats to the messages in the list? Create a new list to hold stats?
-
-        }
-
-        // Determine predicted category and return.
         // TODO Should identical outcomes be considered a spam or ham outcome?
-        return (categoryOutcomes.get("spam") > categoryOutcomes.get("ham"));
+        return score(tkMessage) > 0.5;
     }
 
     /**
-     * Predict class of each message in a list of messages,
-     * print report. TODO printing should be moved out of this method.
-     * @param tkMessages list of tokenized messages
+     * Spam score of a message: the probability of the spam outcome of
+     * the maximum entropy model.
+     * @param tkMessage tokenized message
+     * @return spam score
      */
-    public void predictDataSet(List<TokenizedMessage> tkMessages) {
-
-        // Counts.
-        int totalNum = 0;
-        int numActualTrue = 0;
-        int numActualFalse = 0;
-        int numTP = 0;
-        int numTN = 0;
-        int numFP = 0;
-        int numFN = 0;
-
-        // Classify test messages.
-        System.out.println("============================================");
-        for (TokenizedMessage tkTestkMsg : tkMessages) {
-
-            boolean label = predict(tkTestkMsg);
-
-            // Count total number of messages classified.
-            totalNum++;
-
-            // Count actual labels.
-            if (tkTestkMsg.isSpam()) {
-                numActualTrue++;
-            } else {
-                numActualFalse++;
-            }
-
-            String isCorrect = null;
-
-            // Count correct/incorrect predictions,
-            // and catch TP, TN, FP, FN while at it.
-            if (label == tkTestkMsg.isSpam()) {
-                isCorrect = "correct";
-
-                if (label) {
-                    numTP++;
-                } else {
-                    numTN++;
-                }
-            } else {
-                isCorrect = "INCORRECT";
-
-                if (label) {
-                    numFP++;
-                } else {
-                    numFN++;
-                }
-            }
-
-            // Print stats.
-            System.out.print(String.format("| %-16s | %8s | %10s |\n", tkTestkMsg.getFILE_NAME(), label, isCorrect));
-            //System.out.println(categoryOutcomes);
-        }
+    @Override
+    public double score(TokenizedMessage tkMessage) {
+        return score(tkMessage, categorizers.get());
+    }
 
-        // Calculate null error rate.
-        String majClass = null;
-        double nullErrorRate;
-        if (numActualTrue > numActualFalse) {
-            // spam = true is the majority class.
-            majClass = "true";
-            nullErrorRate = numActualFalse / (double) totalNum;
-        } else {
-            // spam = false is the majority class.
-            majClass = "false";
-            nullErrorRate = numActualTrue / (double) totalNum;
+    /**
+     * Spam scores of a batch of messages with this thread's categorizer.
+     * @param tkMessages list of tokenized messages
+     * @return spam scores in the order of the list
+     */
+    @Override
+    public double[] scoreBatch(List<TokenizedMessage> tkMessages) {
+        DocumentCategorizerME categorizer = categorizers.get();
+        double[] scores = new double[tkMessages.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = score(tkMessages.get(i), categorizer);
         }
-
-
-        //-------------------------------------+
-        //    PRODUCE REPORT OF THE THINGS    /
-        //-----------------------------------+
-
-        System.out.println("============================================\n");
-
-        // Print confusion matrix.
-        System.out.println("CONFUSION MATRIX");
-        System.out.println("================");
-        System.out.println();
-        System.out.println(String.format("  %-8s   %8s   %8s", "", "Spam", "Not Spam"));
-        System.out.println("==================================");
-        System.out.println(String.format("| %-8s | %8s | %8s |" , "Spam", "TP " + numTP, "FP " + numFP));
-        System.out.println("+================================+");
-        System.out.println(String.format("| %-8s | %8s | %8s |" , "Not Spam", "FN " + numFN, "TN " + numTN));
-        System.out.println("==================================");
-
-        System.out.println();
-
-        System.out.println("STATISTICS");
-        System.out.println("==========");
-        System.out.println();
-        System.out.println(String.format("%-25s %d", "Messages Classified: ", totalNum));
-        System.out.println(String.format("%-25s %d", "Correct Predictions: ", (numTP + numTN)));
-        System.out.println(String.format("%-25s %d", "Incorrect Predictions: ", (numFP + numFN)));
-        System.out.println(String.format("%-25s %f", "Accuracy: ", ((numTP + numTN) / (double) totalNum)));
-        System.out.println(String.format("%-25s %f", "Misclassification: ", (numFP + numFN) / (double) totalNum));
-        System.out.println(String.format("%-25s %f", "Precision: ", numTP/ (double) (numTP + numFP)));
-        System.out.println(String.format("%-25s %f", "Recall: ", numTP / (double) (numTP + numFN)));
-        System.out.println(String.format("%-25s %f", "Null Error Rate (Majority " + majClass + "): ", nullErrorRate));
+        return scores;
     }
 
 
@@ -267,13 +163,32 @@ public class DocumentCategorizer implements GenericClassifier {
     //    PRIVATE METHODS    /
     //----------------------+
 
+    /**
+     * Spam score of a message.
+     * @param tkMessage tokenized message
+     * @param categorizer this thread's categorizer
+     * @return probability of spam among the spam and ham outcomes
+     */
+    private double score(TokenizedMessage tkMessage, DocumentCategorizerME categorizer) {
+
+        // Get all tokens from messages, convert to array of
+        // strings which is required by DocumentCategorizerME.
+        List<String> allTokens = tkMessage.getAllTokens();
+        String[] allTokensArr = allTokens.toArray(new String[0]);
+
+        // Run this thread's categorizer over the in-memory model.
+        double[] outcomes = categorizer.categorize(allTokensArr);
+        double spam = outcomes[categorizer.getIndex("spam")];
+        double ham = outcomes[categorizer.getIndex("ham")];
+        return spam / (spam + ham);
+    }
+
     /**
      * Train the model for Apache OpenNLP's Document Categorizer.
      * @param trainingData a single file containing training data in the format specified by OpenNLP
      */
     private void train(File trainingData) {
         // Create the model.
-        DoccatModel model = null;
         try {
             // Build stream of training data required for the document categorizer train method.
             MarkableFileInputStreamFactory dataIn =
@@ -281,9 +196,6 @@ public class DocumentCategorizer implements GenericClassifier {
             ObjectStream<String> lineStream = new PlainTextByLineStream(dataIn, StandardCharsets.UTF_8);
             ObjectStream<DocumentSample> sampleStream = new DocumentSampleStream(lineStream);
 
-            // Build output stream for writing model.
-            OutputStream dataOut = new FileOutputStream(new File(tempDir + "/en-email.model"));
-
             // Train the model.
             // TODO Refactor this to allow parameters to be adjusted.
             // TODO Where the hell is documentation for the parameters?
@@ -293,17 +205,14 @@ public class DocumentCategorizer implements GenericClassifier {
             //  Iterations   = 100,
             //  Algorithm    = MAXENT
             //TrainingParameters trainingParams = TrainingParameters.defaultParams();
+            // The model is kept in memory for predict() rather than
+            // being serialized and read back for every message.
             model = DocumentCategorizerME.train("en",
                     sampleStream, TrainingParameters.defaultParams(), new DoccatFactory());
 
-            // Serialize the model.
-            BufferedOutputStream modelOut = new BufferedOutputStream(dataOut);
-            model.serialize(modelOut);
-
             // Clean up.
             lineStream.close();
             sampleStream.close();
-            dataOut.close();
 
         } catch (IOException ex) {
             // TODO Handle exceptions.
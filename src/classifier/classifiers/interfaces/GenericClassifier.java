@@ -1,12 +1,128 @@
 package classifier.classifiers.interfaces;
 
+import classifier.evaluation.ConfusionMatrix;
+import classifier.evaluation.Evaluator;
 import classifier.messagetypes.TokenizedMessage;
+import classifier.utils.Parallel;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public interface GenericClassifier {
 
     boolean predict(TokenizedMessage tkTestMessage);
 
-    void predictDataSet(List<TokenizedMessage> tkMessages);
-}
\ No newline at end of file
+    /**
+     * Number of messages per batch when scoring a list on several threads.
+     */
+    int SCORE_BATCH_SIZE = 64;
+
+    /**
+     * Spam score of a message, from 0 to 1. A message is spam if the score
+     * is above 0.5, so thresholds other than 0.5 trade precision for
+     * recall. Classifiers without a finer measure score 1 for spam and 0
+     * for not spam.
+     * @param tkTestMessage tokenized message
+     * @return spam score
+     */
+    default double score(TokenizedMessage tkTestMessage) {
+        return predict(tkTestMessage) ? 1.0 : 0.0;
+    }
+
+    /**
+     * Spam scores of a batch of messages on the calling thread, as
+     * score(TokenizedMessage) gives them. Classifiers override this to
+     * share setup, e.g. scratch space, across the batch.
+     * @param tkMessages list of tokenized messages
+     * @return spam scores in the order of the list
+     */
+    default double[] scoreBatch(List<TokenizedMessage> tkMessages) {
+        double[] scores = new double[tkMessages.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = score(tkMessages.get(i));
+        }
+        return scores;
+    }
+
+    /**
+     * Log-odds of the spam scores of a batch of messages,
+     * log(score / (1 - score)): 0 at the decision boundary, positive for
+     * spam. Classifiers whose scores are the logistic function of a margin
+     * override this to return the margin, which keeps its magnitude where
+     * the score rounds to 0 or 1.
+     * @param tkMessages list of tokenized messages
+     * @return log-odds in the order of the list
+     */
+    default double[] logOddsBatch(List<TokenizedMessage> tkMessages) {
+        double[] logOdds = scoreBatch(tkMessages);
+        for (int i = 0; i < logOdds.length; i++) {
+            logOdds[i] = Math.log(logOdds[i]) - Math.log1p(-logOdds[i]);
+        }
+        return logOdds;
+    }
+
+    /**
+     * Spam scores of a list of messages, scoring batches of the list
+     * concurrently with scoreBatch(List) on a pool created for the call.
+     * @param tkMessages list of tokenized messages
+     * @param threads number of threads to score batches on
+     * @return spam scores in the order of the list
+     */
+    default double[] scoreAll(List<TokenizedMessage> tkMessages, int threads) {
+        if (threads <= 1) {
+            return scoreBatch(tkMessages);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return scoreAll(tkMessages, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Spam scores of a list of messages, scoring batches of the list
+     * concurrently with scoreBatch(List) on a pool owned by the caller.
+     * @param tkMessages list of tokenized messages
+     * @param pool pool to score batches on, or null for the calling thread
+     * @return spam scores in the order of the list
+     */
+    default double[] scoreAll(List<TokenizedMessage> tkMessages, ForkJoinPool pool) {
+        if (pool == null || pool.getParallelism() <= 1 || tkMessages.size() <= SCORE_BATCH_SIZE) {
+            return scoreBatch(tkMessages);
+        }
+
+        double[] scores = new double[tkMessages.size()];
+        int numBatches = (scores.length + SCORE_BATCH_SIZE - 1) / SCORE_BATCH_SIZE;
+        Parallel.forEachIndex(pool, numBatches, b -> {
+            int from = b * SCORE_BATCH_SIZE;
+            int to = Math.min(from + SCORE_BATCH_SIZE, scores.length);
+            double[] batch = scoreBatch(tkMessages.subList(from, to));
+            System.arraycopy(batch, 0, scores, from, batch.length);
+        });
+        return scores;
+    }
+
+    /**
+     * Predict class of each message in a list of messages on one thread,
+     * print report.
+     * @param tkMessages list of tokenized messages
+     */
+    default void predictDataSet(List<TokenizedMessage> tkMessages) {
+        predictDataSet(tkMessages, 1);
+    }
+
+    /**
+     * Predict class of each message in a list of messages, scoring up to
+     * the given number of messages concurrently, print report.
+     * The report lists messages in the order of the list.
+     * @param tkMessages list of tokenized messages
+     * @param threads number of threads to score messages on
+     */
+    default void predictDataSet(List<TokenizedMessage> tkMessages, int threads) {
+        boolean[] labels = new boolean[tkMessages.size()];
+        ConfusionMatrix matrix = Evaluator.evaluate(this, tkMessages, threads, labels);
+        Evaluator.printReport(tkMessages, labels, matrix);
+    }
+}
@@ -0,0 +1,180 @@
+package classifier.evaluation;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Confusion matrix of spam predictions, accumulated from a stream of
+ * (actual, predicted, score) outcomes.
+ *
+ * Counters are lock-free, so any number of threads can record outcomes
+ * concurrently, and nothing is kept per message, so the size of the test
+ * set is unbounded. Statistics are read from the counters at any time;
+ * read them once recording is done for consistent values.
+ */
+public class ConfusionMatrix {
+
+    private final LongAdder truePositives = new LongAdder();
+
+    private final LongAdder trueNegatives = new LongAdder();
+
+    private final LongAdder falsePositives = new LongAdder();
+
+    private final LongAdder falseNegatives = new LongAdder();
+
+    /**
+     * Sum of the squared differences of the spam scores and the actual labels.
+     */
+    private final DoubleAdder squaredError = new DoubleAdder();
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Record the outcome of one message.
+     * @param actual true if the message is spam
+     * @param predicted true if the message was predicted as spam
+     * @param score spam score of the prediction, from 0 to 1
+     */
+    public void record(boolean actual, boolean predicted, double score) {
+        if (actual) {
+            (predicted ? truePositives : falseNegatives).increment();
+        } else {
+            (predicted ? falsePositives : trueNegatives).increment();
+        }
+        double error = score - (actual ? 1.0 : 0.0);
+        squaredError.add(error * error);
+    }
+
+    /**
+     * Record the outcome of one message predicted without a score.
+     * @param actual true if the message is spam
+     * @param predicted true if the message was predicted as spam
+     */
+    public void record(boolean actual, boolean predicted) {
+        record(actual, predicted, predicted ? 1.0 : 0.0);
+    }
+
+    /**
+     * Add the outcomes of another matrix, e.g. of one fold of several.
+     * @param other the other matrix
+     */
+    public void add(ConfusionMatrix other) {
+        truePositives.add(other.getTruePositives());
+        trueNegatives.add(other.getTrueNegatives());
+        falsePositives.add(other.getFalsePositives());
+        falseNegatives.add(other.getFalseNegatives());
+        squaredError.add(other.squaredError.sum());
+    }
+
+    public long getTruePositives() {
+        return truePositives.sum();
+    }
+
+    public long getTrueNegatives() {
+        return trueNegatives.sum();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    public long getFalseNegatives() {
+        return falseNegatives.sum();
+    }
+
+    /**
+     * @return number of messages recorded
+     */
+    public long getTotal() {
+        return getTruePositives() + getTrueNegatives() + getFalsePositives() + getFalseNegatives();
+    }
+
+    /**
+     * @return number of messages that are spam
+     */
+    public long getActualSpam() {
+        return getTruePositives() + getFalseNegatives();
+    }
+
+    /**
+     * @return number of messages that are not spam
+     */
+    public long getActualHam() {
+        return getTrueNegatives() + getFalsePositives();
+    }
+
+    /**
+     * @return number of messages predicted correctly
+     */
+    public long getCorrect() {
+        return getTruePositives() + getTrueNegatives();
+    }
+
+    /**
+     * @return number of messages predicted wrongly
+     */
+    public long getIncorrect() {
+        return getFalsePositives() + getFalseNegatives();
+    }
+
+    /**
+     * @return fraction of messages predicted correctly
+     */
+    public double getAccuracy() {
+        return getCorrect() / (double) getTotal();
+    }
+
+    /**
+     * @return fraction of messages predicted wrongly
+     */
+    public double getMisclassification() {
+        return getIncorrect() / (double) getTotal();
+    }
+
+    /**
+     * @return fraction of the messages predicted as spam that are spam
+     */
+    public double getPrecision() {
+        return getTruePositives() / (double) (getTruePositives() + getFalsePositives());
+    }
+
+    /**
+     * @return fraction of the spam messages predicted as spam
+     */
+    public double getRecall() {
+        return getTruePositives() / (double) getActualSpam();
+    }
+
+    /**
+     * @return harmonic mean of precision and recall
+     */
+    public double getF1() {
+        return 2.0 * getTruePositives()
+                / (2.0 * getTruePositives() + getFalsePositives() + getFalseNegatives());
+    }
+
+    /**
+     * @return true if more messages are spam than not
+     */
+    public boolean isMajoritySpam() {
+        return getActualSpam() > getActualHam();
+    }
+
+    /**
+     * @return error rate of always predicting the majority class
+     */
+    public double getNullErrorRate() {
+        return (isMajoritySpam() ? getActualHam() : getActualSpam()) / (double) getTotal();
+    }
+
+    /**
+     * @return mean squared difference of the spam scores and the actual labels
+     */
+    public double getBrierScore() {
+        return squaredError.sum() / getTotal();
+    }
+}
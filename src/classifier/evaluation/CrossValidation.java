@@ -0,0 +1,260 @@
+package classifier.evaluation;
+
+import classifier.classifiers.interfaces.GenericClassifier;
+import classifier.messagetypes.TokenizedMessage;
+import classifier.utils.Parallel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+
+/**
+ * k-fold cross-validation of a classifier over a tokenized corpus.
+ *
+ * The corpus is split into folds with the same share of spam each. Every
+ * fold is held out once: a classifier is trained on the other folds and
+ * evaluated on it. Folds run concurrently, each on one thread, over the
+ * same tokenized messages, so the corpus is read, wrangled and vectorized
+ * once for all folds.
+ *
+ * Example, 10 folds of KNN on 4 threads:
+ * <pre>
+ *     CrossValidation cv = new CrossValidation(train -> new KNN(train, 3), 10);
+ *     cv.run(corpus, 4).printReport();
+ * </pre>
+ */
+public class CrossValidation {
+
+    /**
+     * Seed of the split, fixed so folds are repeatable.
+     */
+    private static final long SEED = 42L;
+
+    /**
+     * Trains a classifier on the messages of the other folds.
+     */
+    private final Function<List<TokenizedMessage>, ? extends GenericClassifier> trainer;
+
+    private final int numFolds;
+
+    /**
+     * Outcomes and times of one fold.
+     */
+    public static class Fold {
+
+        private final int trainSize;
+        private final int testSize;
+        private final ConfusionMatrix matrix;
+        private final long trainNanos;
+        private final long predictNanos;
+
+        Fold(int trainSize, int testSize, ConfusionMatrix matrix, long trainNanos, long predictNanos) {
+            this.trainSize = trainSize;
+            this.testSize = testSize;
+            this.matrix = matrix;
+            this.trainNanos = trainNanos;
+            this.predictNanos = predictNanos;
+        }
+
+        public int getTrainSize() {
+            return trainSize;
+        }
+
+        public int getTestSize() {
+            return testSize;
+        }
+
+        public ConfusionMatrix getMatrix() {
+            return matrix;
+        }
+
+        public long getTrainNanos() {
+            return trainNanos;
+        }
+
+        public long getPredictNanos() {
+            return predictNanos;
+        }
+    }
+
+    /**
+     * Outcomes of all folds.
+     */
+    public static class Result {
+
+        private final List<Fold> folds;
+        private final ConfusionMatrix total;
+        private final long wallClockNanos;
+
+        Result(List<Fold> folds, ConfusionMatrix total, long wallClockNanos) {
+            this.folds = folds;
+            this.total = total;
+            this.wallClockNanos = wallClockNanos;
+        }
+
+        public List<Fold> getFolds() {
+            return folds;
+        }
+
+        /**
+         * @return outcomes of every message, each predicted by the fold holding it out
+         */
+        public ConfusionMatrix getTotal() {
+            return total;
+        }
+
+        public long getWallClockNanos() {
+            return wallClockNanos;
+        }
+
+        /**
+         * Print the statistics and times of each fold, then the statistics
+         * over all folds.
+         */
+        public void printReport() {
+            System.out.println("CROSS-VALIDATION");
+            System.out.println("================");
+            System.out.println();
+            System.out.println(String.format("| %4s | %6s | %6s | %8s | %9s | %8s | %8s | %10s | %12s |",
+                    "Fold", "Train", "Test", "Accuracy", "Precision", "Recall", "F1",
+                    "Train (ms)", "Predict (ms)"));
+            System.out.println("|------|--------|--------|----------|-----------|----------|----------|"
+                    + "------------|--------------|");
+            long trainNanos = 0;
+            long predictNanos = 0;
+            for (int f = 0; f < folds.size(); f++) {
+                Fold fold = folds.get(f);
+                ConfusionMatrix matrix = fold.getMatrix();
+                System.out.println(String.format("| %4d | %6d | %6d | %8.4f | %9.4f | %8.4f | %8.4f | %10.1f | %12.1f |",
+                        f + 1, fold.getTrainSize(), fold.getTestSize(), matrix.getAccuracy(),
+                        matrix.getPrecision(), matrix.getRecall(), matrix.getF1(),
+                        fold.getTrainNanos() / 1e6, fold.getPredictNanos() / 1e6));
+                trainNanos += fold.getTrainNanos();
+                predictNanos += fold.getPredictNanos();
+            }
+            System.out.println();
+            System.out.println(String.format("%-25s %.1f", "Wall Clock (ms): ", wallClockNanos / 1e6));
+            System.out.println(String.format("%-25s %.1f", "Total Training (ms): ", trainNanos / 1e6));
+            System.out.println(String.format("%-25s %.1f", "Total Prediction (ms): ", predictNanos / 1e6));
+            System.out.println();
+
+            System.out.println("ALL FOLDS");
+            System.out.println("=========");
+            System.out.println();
+            Evaluator.printStatistics(total);
+        }
+    }
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor.
+     * @param trainer trains a classifier on a list of messages
+     * @param numFolds number of folds, at least 2
+     */
+    public CrossValidation(Function<List<TokenizedMessage>, ? extends GenericClassifier> trainer, int numFolds) {
+        if (numFolds < 2) {
+            throw new IllegalArgumentException("Cross-validation needs at least 2 folds.");
+        }
+        this.trainer = trainer;
+        this.numFolds = numFolds;
+    }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Train and evaluate every fold.
+     * @param corpus labeled messages, at least one per fold
+     * @param threads number of folds run concurrently
+     * @return outcomes of the folds
+     */
+    public Result run(List<TokenizedMessage> corpus, int threads) {
+        if (corpus.size() < numFolds) {
+            throw new IllegalArgumentException("Cross-validation needs at least one message per fold.");
+        }
+        long start = System.nanoTime();
+
+        // Cache the tokens and term vectors of every message up front,
+        // so the folds only read them.
+        for (TokenizedMessage tkMessage : corpus) {
+            tkMessage.getAllTokens();
+            tkMessage.getTermIds();
+        }
+
+        int[] folds = assignFolds(corpus);
+        Fold[] results = new Fold[numFolds];
+        Parallel.forEachIndex(numFolds, threads, f -> results[f] = runFold(corpus, folds, f));
+
+        ConfusionMatrix total = new ConfusionMatrix();
+        for (Fold fold : results) {
+            total.add(fold.getMatrix());
+        }
+        List<Fold> foldList = new ArrayList<>();
+        Collections.addAll(foldList, results);
+        return new Result(foldList, total, System.nanoTime() - start);
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Assign each message to a fold, dealing the shuffled spam and not
+     * spam messages round robin so every fold has the same share of spam.
+     * @param corpus labeled messages
+     * @return fold of each message
+     */
+    private int[] assignFolds(List<TokenizedMessage> corpus) {
+        List<Integer> order = new ArrayList<>(corpus.size());
+        for (int i = 0; i < corpus.size(); i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(SEED));
+
+        int[] folds = new int[corpus.size()];
+        int nextSpam = 0;
+        int nextHam = numFolds - 1; // so small folds get both labels
+        for (int i : order) {
+            if (corpus.get(i).isSpam()) {
+                folds[i] = nextSpam;
+                nextSpam = (nextSpam + 1) % numFolds;
+            } else {
+                folds[i] = nextHam;
+                nextHam = (nextHam + numFolds - 1) % numFolds;
+            }
+        }
+        return folds;
+    }
+
+    /**
+     * Train on the other folds and evaluate on one fold.
+     * @param corpus labeled messages
+     * @param folds fold of each message
+     * @param fold the held out fold
+     * @return outcomes and times of the fold
+     */
+    private Fold runFold(List<TokenizedMessage> corpus, int[] folds, int fold) {
+        List<TokenizedMessage> train = new ArrayList<>();
+        List<TokenizedMessage> test = new ArrayList<>();
+        for (int i = 0; i < folds.length; i++) {
+            (folds[i] == fold ? test : train).add(corpus.get(i));
+        }
+
+        long start = System.nanoTime();
+        GenericClassifier classifier = trainer.apply(train);
+        long trained = System.nanoTime();
+        ConfusionMatrix matrix = Evaluator.evaluate(classifier, test, 1, null);
+        long predicted = System.nanoTime();
+
+        return new Fold(train.size(), test.size(), matrix, trained - start, predicted - trained);
+    }
+}
@@ -0,0 +1,158 @@
+package classifier.evaluation;
+
+import classifier.classifiers.interfaces.GenericClassifier;
+import classifier.messagetypes.TokenizedMessage;
+import classifier.utils.Parallel;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Evaluation of classifiers on labeled test messages.
+ *
+ * Batches of messages are scored concurrently and every outcome goes
+ * straight into a ConfusionMatrix, so only the per-message labels asked
+ * for are kept. Several classifiers can be evaluated in one pass over the
+ * messages.
+ *
+ * Example, evaluating and printing the report of one classifier:
+ * <pre>
+ *     boolean[] labels = new boolean[tkMessages.size()];
+ *     ConfusionMatrix matrix = Evaluator.evaluate(knn, tkMessages, threads, labels);
+ *     Evaluator.printReport(tkMessages, labels, matrix);
+ * </pre>
+ */
+public class Evaluator {
+
+    private Evaluator() { }
+
+
+    //---------------------------------+
+    //     PUBLIC STATIC METHODS      /
+    //-------------------------------+
+
+    /**
+     * Score each message with a classifier and record the outcomes.
+     * A message is predicted as spam if its score is above 0.5.
+     * @param classifier the classifier
+     * @param tkMessages labeled messages
+     * @param threads number of threads to score batches of messages on
+     * @param labels receives the predicted labels in the order of the list,
+     *               or null if they aren't needed
+     * @return the outcomes
+     */
+    public static ConfusionMatrix evaluate(GenericClassifier classifier, List<TokenizedMessage> tkMessages,
+                                           int threads, boolean[] labels) {
+        return evaluate(Collections.singletonList(classifier), tkMessages, threads, labels)[0];
+    }
+
+    /**
+     * Score each message with each of several classifiers and record the
+     * outcomes per classifier. Batches of messages are scored concurrently,
+     * each by every classifier in turn, so the messages are gone through once.
+     * @param classifiers the classifiers
+     * @param tkMessages labeled messages
+     * @param threads number of threads to score batches of messages on
+     * @return the outcomes, in the order of the classifiers
+     */
+    public static ConfusionMatrix[] evaluate(List<? extends GenericClassifier> classifiers,
+                                             List<TokenizedMessage> tkMessages, int threads) {
+        return evaluate(classifiers, tkMessages, threads, null);
+    }
+
+    /**
+     * Print the label of each message, then the confusion matrix and
+     * statistics.
+     * @param tkMessages labeled messages
+     * @param labels predicted labels in the order of the list
+     * @param matrix the outcomes
+     */
+    public static void printReport(List<TokenizedMessage> tkMessages, boolean[] labels, ConfusionMatrix matrix) {
+
+        // Print stats in the order of the list.
+        System.out.println("============================================");
+        for (int i = 0; i < tkMessages.size(); i++) {
+            TokenizedMessage tkTestkMsg = tkMessages.get(i);
+            String isCorrect = (labels[i] == tkTestkMsg.isSpam()) ? "correct" : "INCORRECT";
+            System.out.print(String.format("| %-16s | %8s | %10s |\n", tkTestkMsg.getFILE_NAME(), labels[i], isCorrect));
+        }
+        System.out.println("============================================\n");
+
+        printStatistics(matrix);
+    }
+
+    /**
+     * Print the confusion matrix and statistics.
+     * @param matrix the outcomes
+     */
+    public static void printStatistics(ConfusionMatrix matrix) {
+
+        // Print confusion matrix.
+        System.out.println("CONFUSION MATRIX");
+        System.out.println("================");
+        System.out.println();
+        System.out.println(String.format("  %-8s   %8s   %8s", "", "Spam", "Not Spam"));
+        System.out.println("==================================");
+        System.out.println(String.format("| %-8s | %8s | %8s |" , "Spam",
+                "TP " + matrix.getTruePositives(), "FP " + matrix.getFalsePositives()));
+        System.out.println("+================================+");
+        System.out.println(String.format("| %-8s | %8s | %8s |" , "Not Spam",
+                "FN " + matrix.getFalseNegatives(), "TN " + matrix.getTrueNegatives()));
+        System.out.println("==================================");
+
+        System.out.println();
+
+        System.out.println("STATISTICS");
+        System.out.println("==========");
+        System.out.println();
+        System.out.println(String.format("%-25s %d", "Messages Classified: ", matrix.getTotal()));
+        System.out.println(String.format("%-25s %d", "Correct Predictions: ", matrix.getCorrect()));
+        System.out.println(String.format("%-25s %d", "Incorrect Predictions: ", matrix.getIncorrect()));
+        System.out.println(String.format("%-25s %f", "Accuracy: ", matrix.getAccuracy()));
+        System.out.println(String.format("%-25s %f", "Misclassification: ", matrix.getMisclassification()));
+        System.out.println(String.format("%-25s %f", "Precision: ", matrix.getPrecision()));
+        System.out.println(String.format("%-25s %f", "Recall: ", matrix.getRecall()));
+        System.out.println(String.format("%-25s %f", "F1 Score: ", matrix.getF1()));
+        System.out.println(String.format("%-25s %f", "Null Error Rate (Majority "
+                + matrix.isMajoritySpam() + "): ", matrix.getNullErrorRate()));
+        System.out.println(String.format("%-25s %f", "Brier Score: ", matrix.getBrierScore()));
+    }
+
+
+    //---------------------------------+
+    //     PRIVATE STATIC METHODS     /
+    //-------------------------------+
+
+    /**
+     * Score batches of messages with the classifiers concurrently and
+     * record the outcomes.
+     * @param labels receives the labels predicted by the first classifier, or null
+     */
+    private static ConfusionMatrix[] evaluate(List<? extends GenericClassifier> classifiers,
+                                              List<TokenizedMessage> tkMessages, int threads,
+                                              boolean[] labels) {
+        ConfusionMatrix[] matrices = new ConfusionMatrix[classifiers.size()];
+        for (int c = 0; c < matrices.length; c++) {
+            matrices[c] = new ConfusionMatrix();
+        }
+
+        int batchSize = GenericClassifier.SCORE_BATCH_SIZE;
+        int numBatches = (tkMessages.size() + batchSize - 1) / batchSize;
+        Parallel.forEachIndex(numBatches, threads, b -> {
+            List<TokenizedMessage> batch = tkMessages.subList(b * batchSize,
+                    Math.min((b + 1) * batchSize, tkMessages.size()));
+            for (int c = 0; c < matrices.length; c++) {
+                double[] scores = classifiers.get(c).scoreBatch(batch);
+                for (int i = 0; i < scores.length; i++) {
+                    boolean label = scores[i] > 0.5;
+                    if (labels != null && c == 0) {
+                        labels[b * batchSize + i] = label;
+                    }
+                    matrices[c].record(batch.get(i).isSpam(), label, scores[i]);
+                }
+            }
+        });
+        return matrices;
+    }
+}
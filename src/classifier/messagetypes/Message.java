@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -75,20 +76,10 @@ public class Message {
         FILE_PATH = message.toAbsolutePath().toString();
         ENCODING = encoding;
 
-        // TODO Move parsing out of constructor?
-        // Parse out subject line.
-        // Everything from "Subject: " up to first newline char is subject.
         try (BufferedReader reader = Files.newBufferedReader(message, ENCODING)){
 
             // Get entire text by collecting stream to list.
-            body = reader.lines().collect(Collectors.toList());
-
-            // Get first line as subject, remove label.
-            // TODO Right place to remove subject label?
-            subject = body.remove(0).replace("Subject: ", "");
-
-            // Remove empty line between subject and body.
-            body.remove(0);
+            parse(reader.lines().collect(Collectors.toList()));
 
         } catch (IOException ex) {
             // TODO Handle exception.
@@ -96,6 +87,17 @@ public class Message {
         }
     }
 
+    /**
+     * Constructor for a message that is not a file, e.g. one received
+     * by the server. The label is unknown and left as not spam.
+     * @param name name of the message
+     * @param lines text of the message: subject line, empty line and body
+     */
+    public Message(String name, List<String> lines) {
+        FILE_NAME = name;
+        parse(new ArrayList<>(lines));
+    }
+
 
     //-------------------------+
     //     PUBLIC METHODS     /
@@ -118,6 +120,24 @@ public class Message {
     //     PRIVATE METHODS     /
     //------------------------+
 
+    /**
+     * Split the text of a message into subject and body.
+     * Everything from "Subject: " up to first newline char is subject.
+     * @param lines text of the message, modifiable, kept as the body
+     */
+    private void parse(List<String> lines) {
+        body = lines;
+
+        // Get first line as subject, remove label.
+        // TODO Right place to remove subject label?
+        subject = body.isEmpty() ? "" : body.remove(0).replace("Subject: ", "");
+
+        // Remove empty line between subject and body.
+        if (!body.isEmpty()) {
+            body.remove(0);
+        }
+    }
+
 
     //----------------------------+
     //     GETTERS & SETTERS     /
@@ -1,8 +1,8 @@
 package classifier.messagetypes;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import classifier.utils.Vocabulary;
+
+import java.util.*;
 
 
 /**
@@ -21,6 +21,38 @@ public class TokenizedMessage extends Message {
      */
     private List<String> bodyTokens;
 
+    /**
+     * Cached list of all distinct tokens, see getAllTokens().
+     */
+    private List<String> allTokens;
+
+    /**
+     * Vocabulary the term ids were assigned by.
+     */
+    private Vocabulary vocabulary;
+
+    /**
+     * Cached sorted ids of all distinct tokens, see getTermIds().
+     */
+    private int[] termIds;
+
+    /**
+     * Cached number of occurrences of each term, parallel to termIds.
+     */
+    private int[] termCounts;
+
+    /**
+     * Tokens the vocabulary didn't know when the cached vector was looked
+     * up as a query, the token of term id -1 - i at i. Null if every token
+     * was added to the vocabulary instead, see getQueryTermIds().
+     */
+    private String[] unknownTerms;
+
+    /**
+     * Size of the vocabulary when the cached query vector was looked up.
+     */
+    private int lookupSize;
+
     //-----------------------+
     //     CONSTRUCTORS     /
     //---------------------+
@@ -44,20 +76,89 @@ public class TokenizedMessage extends Message {
     //-----------------------+
 
     /**
-     * Gets all tokens for message in one list.
-     * @return all tokens for message
+     * Gets all distinct tokens for message in one list.
+     * The list is computed once and cached until the tokens are set again.
+     * @return unmodifiable list of all tokens for message
      */
     public List<String> getAllTokens() {
-        // New list with subject tokens, then add all body tokens.
-        List<String> allTokens = new ArrayList<>(this.subjectTokens);
-        allTokens.addAll(this.bodyTokens);
+        if (allTokens == null) {
+            // Subject tokens, then all body tokens, without duplicates.
+            Set<String> tokenSet = new LinkedHashSet<>(this.subjectTokens);
+            tokenSet.addAll(this.bodyTokens);
 
-        // Remove duplicates.
-        allTokens = new ArrayList<>(new HashSet<>(allTokens));
+            allTokens = Collections.unmodifiableList(new ArrayList<>(tokenSet));
+        }
 
         return allTokens;
     }
 
+    /**
+     * Gets the sorted term ids of all distinct tokens for message,
+     * assigned by the shared vocabulary unless vectorize() was called
+     * with another one. Tokens new to the vocabulary are added to it, so
+     * this is for training; queries use getQueryTermIds(). The array is
+     * cached and must not be modified.
+     * @return sorted term ids
+     */
+    public int[] getTermIds() {
+        if (termIds == null || hasUnknownTerms()) { vectorize(Vocabulary.shared()); }
+        return termIds;
+    }
+
+    /**
+     * Gets the number of occurrences in subject and body of each term,
+     * parallel to getTermIds(). The array is cached and must not be modified.
+     * @return term counts
+     */
+    public int[] getTermCounts() {
+        if (termIds == null || hasUnknownTerms()) { vectorize(Vocabulary.shared()); }
+        return termCounts;
+    }
+
+    /**
+     * Gets the sorted term ids of all distinct tokens for message, for
+     * scoring it against trained models. Unlike getTermIds(), tokens the
+     * shared vocabulary doesn't know aren't added to it, so scoring
+     * doesn't grow the vocabulary; they get negative term ids local to the
+     * message instead, see getUnknownTerm(). A vector cached by
+     * getTermIds() or vectorize() is returned as is. The array is cached
+     * and must not be modified.
+     * @return sorted term ids, unknown tokens first
+     */
+    public int[] getQueryTermIds() {
+        if (isQueryStale()) { vectorize(Vocabulary.shared(), new HashMap<>()); }
+        return termIds;
+    }
+
+    /**
+     * Gets the number of occurrences in subject and body of each term,
+     * parallel to getQueryTermIds(). The array is cached and must not be
+     * modified.
+     * @return term counts
+     */
+    public int[] getQueryTermCounts() {
+        if (isQueryStale()) { vectorize(Vocabulary.shared(), new HashMap<>()); }
+        return termCounts;
+    }
+
+    /**
+     * Gets the token of a negative term id of getQueryTermIds().
+     * @param termId negative term id
+     * @return the token
+     */
+    public String getUnknownTerm(int termId) {
+        return unknownTerms[-1 - termId];
+    }
+
+    /**
+     * Assign term ids to the tokens of the message, adding new tokens to
+     * the vocabulary, and cache the sorted term id vector and term counts.
+     * @param vocabulary vocabulary assigning the term ids
+     */
+    public void vectorize(Vocabulary vocabulary) {
+        vectorize(vocabulary, null);
+    }
+
     /**
      * Print formatted list of all tokens for message.
      */
@@ -97,6 +198,98 @@ public class TokenizedMessage extends Message {
     //     PRIVATE METHODS     /
     //------------------------+
 
+    /**
+     * Assign term ids to the tokens of the message and cache the
+     * sorted term id vector and term counts.
+     * @param vocabulary vocabulary assigning the term ids
+     * @param unknownIds empty map to collect the ids of tokens the
+     *                   vocabulary doesn't know, or null to add them to it
+     */
+    private void vectorize(Vocabulary vocabulary, Map<String, Integer> unknownIds) {
+        int vocabularySize = vocabulary.size();
+
+        // Term id of every token occurrence.
+        int[] occurrences = new int[subjectTokens.size() + bodyTokens.size()];
+        int n = 0;
+        for (String token : subjectTokens) { occurrences[n++] = termId(vocabulary, token, unknownIds); }
+        for (String token : bodyTokens) { occurrences[n++] = termId(vocabulary, token, unknownIds); }
+        Arrays.sort(occurrences);
+
+        // Collapse runs of equal ids into distinct ids and counts.
+        int[] ids = new int[n];
+        int[] counts = new int[n];
+        int numTerms = 0;
+        for (int i = 0; i < n; i++) {
+            if (numTerms > 0 && ids[numTerms - 1] == occurrences[i]) {
+                counts[numTerms - 1]++;
+            } else {
+                ids[numTerms] = occurrences[i];
+                counts[numTerms++] = 1;
+            }
+        }
+
+        String[] unknown = null;
+        if (unknownIds != null) {
+            unknown = new String[unknownIds.size()];
+            for (Map.Entry<String, Integer> entry : unknownIds.entrySet()) {
+                unknown[-1 - entry.getValue()] = entry.getKey();
+            }
+        }
+
+        this.termCounts = Arrays.copyOf(counts, numTerms);
+        this.unknownTerms = unknown;
+        this.lookupSize = vocabularySize;
+        this.termIds = Arrays.copyOf(ids, numTerms);
+        this.vocabulary = vocabulary;
+    }
+
+    /**
+     * @param vocabulary vocabulary assigning the term ids
+     * @param token the token
+     * @param unknownIds ids of the unknown tokens so far, or null to add
+     *                   unknown tokens to the vocabulary
+     * @return term id of the token, negative if unknown
+     */
+    private static int termId(Vocabulary vocabulary, String token, Map<String, Integer> unknownIds) {
+        if (unknownIds == null) { return vocabulary.idOf(token); }
+
+        int termId = vocabulary.lookup(token);
+        if (termId >= 0) { return termId; }
+
+        Integer unknownId = unknownIds.get(token);
+        if (unknownId == null) {
+            unknownId = -1 - unknownIds.size();
+            unknownIds.put(token, unknownId);
+        }
+        return unknownId;
+    }
+
+    /**
+     * @return true if the cached vector is a query vector with unknown tokens
+     */
+    private boolean hasUnknownTerms() {
+        return unknownTerms != null && unknownTerms.length > 0;
+    }
+
+    /**
+     * @return true if there is no cached vector, or it is a query vector
+     *         with unknown tokens the vocabulary may have learned since
+     */
+    private boolean isQueryStale() {
+        return termIds == null || (hasUnknownTerms() && vocabulary.size() != lookupSize);
+    }
+
+    /**
+     * Drop cached token lists and vectors after the tokens change.
+     */
+    private void clearCachedTokens() {
+        allTokens = null;
+        termIds = null;
+        termCounts = null;
+        unknownTerms = null;
+        vocabulary = null;
+    }
+
 
     //----------------------------+
     //     GETTERS & SETTERS     /
@@ -108,6 +301,7 @@ public class TokenizedMessage extends Message {
 
     public void setSubjectTokens(List<String> subjectTokens) {
         this.subjectTokens = subjectTokens;
+        clearCachedTokens();
     }
 
     public List<String> getBodyTokens() {
@@ -116,6 +310,11 @@ public class TokenizedMessage extends Message {
 
     public void setBodyTokens(List<String> bodyTokens) {
         this.bodyTokens = bodyTokens;
+        clearCachedTokens();
+    }
+
+    public Vocabulary getVocabulary() {
+        return vocabulary;
     }
 
 }
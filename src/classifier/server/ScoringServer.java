@@ -0,0 +1,300 @@
+package classifier.server;
+
+import classifier.messagetypes.Message;
+import classifier.messagetypes.TokenizedMessage;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+
+/**
+ * Long-running HTTP server classifying messages with a model trained or
+ * loaded once.
+ *
+ * Endpoints:
+ * <pre>
+ *   POST /classify   body: message text, subject line, empty line and body
+ *                    response: "spam" or "ham" and the spam score, 0 to 1
+ *   GET  /health     response: "ok" and the number of requests and batches
+ * </pre>
+ * Request threads parse and wrangle their message, then queue it. Worker
+ * threads take the queued messages in batches of up to batchSize, waiting
+ * at most maxWait for a batch to fill, so the classifier can amortize its
+ * setup over the batch while a lone request is never held for long.
+ */
+public class ScoringServer {
+
+    /**
+     * A queued message and the future its score completes.
+     */
+    private static class Request {
+
+        private final TokenizedMessage message;
+
+        private final CompletableFuture<Double> score = new CompletableFuture<>();
+
+        Request(TokenizedMessage message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * Spam scores of a batch of messages, in the order of the batch.
+     */
+    private final Function<List<TokenizedMessage>, double[]> scorer;
+
+    /**
+     * Wrangles a received message as the training messages were.
+     */
+    private final Function<Message, TokenizedMessage> pipeline;
+
+    private final int workers;
+
+    private final int batchSize;
+
+    private final long maxWaitNanos;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    private final AtomicLong numRequests = new AtomicLong();
+
+    private final AtomicLong numBatches = new AtomicLong();
+
+    private volatile boolean running;
+
+    private HttpServer server;
+
+    private ExecutorService requestThreads;
+
+    private List<Thread> workerThreads;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor.
+     * @param scorer spam scores of a batch of messages, from 0 to 1, spam above 0.5
+     * @param pipeline wrangles a received message
+     * @param workers number of worker threads classifying batches
+     * @param batchSize maximum number of messages per batch
+     * @param maxWaitMillis longest time a worker waits for a batch to fill
+     */
+    public ScoringServer(Function<List<TokenizedMessage>, double[]> scorer,
+                         Function<Message, TokenizedMessage> pipeline,
+                         int workers, int batchSize, long maxWaitMillis) {
+        this.scorer = scorer;
+        this.pipeline = pipeline;
+        this.workers = Math.max(1, workers);
+        this.batchSize = Math.max(1, batchSize);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+    }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Start the worker threads and listen for requests.
+     * @param address address to listen on
+     * @throws IOException if the address can't be bound
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (running) { return; }
+
+        server = HttpServer.create(address, 0);
+        server.createContext("/classify", this::handleClassify);
+        server.createContext("/health", this::handleHealth);
+
+        // Enough request threads to fill every worker's batch.
+        requestThreads = Executors.newFixedThreadPool(workers * batchSize);
+        server.setExecutor(requestThreads);
+
+        running = true;
+        workerThreads = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "classifier-worker-" + i);
+            worker.start();
+            workerThreads.add(worker);
+        }
+        server.start();
+    }
+
+    /**
+     * Stop listening, finish the queued messages and stop the workers.
+     */
+    public synchronized void stop() {
+        if (!running) { return; }
+
+        server.stop(1);
+        requestThreads.shutdown();
+        running = false;
+        for (Thread worker : workerThreads) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue a message for classification.
+     * @param message wrangled message
+     * @return future spam score
+     */
+    public CompletableFuture<Double> submit(TokenizedMessage message) {
+        Request request = new Request(message);
+        queue.add(request);
+        numRequests.incrementAndGet();
+        return request.score;
+    }
+
+    /**
+     * @return address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    public long getNumBatches() {
+        return numBatches.get();
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Worker loop: take a batch from the queue and classify it, until
+     * stopped and the queue is empty.
+     */
+    private void work() {
+        List<Request> batch = new ArrayList<>(batchSize);
+        List<TokenizedMessage> messages = new ArrayList<>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) { continue; }
+
+                // Fill the batch with what is queued, then wait for more
+                // until the batch is full or the wait is over.
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < batchSize) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) { break; }
+                    batch.add(next);
+                }
+
+                classify(batch, messages);
+                batch.clear();
+                messages.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Score a batch and complete the futures of its requests.
+     * @param batch requests
+     * @param messages scratch list for the messages of the batch
+     */
+    private void classify(List<Request> batch, List<TokenizedMessage> messages) {
+        for (Request request : batch) {
+            messages.add(request.message);
+        }
+        try {
+            double[] scores = scorer.apply(messages);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).score.complete(scores[i]);
+            }
+        } catch (RuntimeException ex) {
+            for (Request request : batch) {
+                request.score.completeExceptionally(ex);
+            }
+        }
+        numBatches.incrementAndGet();
+    }
+
+    /**
+     * POST /classify: wrangle the message in the body, queue it and
+     * respond with its label and score.
+     */
+    private void handleClassify(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Use POST with the message as the body.");
+                return;
+            }
+
+            List<String> lines;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                lines = reader.lines().collect(Collectors.toList());
+            }
+            if (lines.isEmpty()) {
+                respond(exchange, 400, "Empty message.");
+                return;
+            }
+
+            TokenizedMessage message = pipeline.apply(new Message("request", lines));
+            double score = submit(message).get();
+            respond(exchange, 200, String.format(Locale.ROOT, "%s %.4f", (score > 0.5) ? "spam" : "ham", score));
+
+        } catch (ExecutionException ex) {
+            respond(exchange, 500, String.valueOf(ex.getCause()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Server is stopping.");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * GET /health: report that the server is up.
+     */
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange, 200, "ok " + numRequests.get() + " requests, "
+                    + numBatches.get() + " batches");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Send a plain text response.
+     */
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
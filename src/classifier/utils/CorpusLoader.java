@@ -0,0 +1,126 @@
+package classifier.utils;
+
+import classifier.messagetypes.Message;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+
+/**
+ * Streaming loader for a directory of message files.
+ *
+ * The directory is walked lazily on the calling thread while worker threads
+ * parse each file and immediately pass the message through a processing
+ * stage (e.g. tokenization), so reading and processing overlap. The number
+ * of files in flight is bounded, so only the stage results are held once a
+ * file has been processed, not every raw message.
+ */
+public class CorpusLoader {
+
+    /**
+     * Number of files in flight per worker thread.
+     */
+    private static final int QUEUE_DEPTH_PER_THREAD = 4;
+
+    /**
+     * Number of worker threads parsing and processing files.
+     */
+    private final int threads;
+
+    /**
+     * Encoding of the message files.
+     */
+    private final Charset encoding;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor for UTF-8 message files.
+     * @param threads number of worker threads
+     */
+    public CorpusLoader(int threads) {
+        this(threads, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Constructor.
+     * @param threads number of worker threads
+     * @param encoding encoding of the message files
+     */
+    public CorpusLoader(int threads, Charset encoding) {
+        this.threads = Math.max(1, threads);
+        this.encoding = encoding;
+    }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Parse every file in a directory as a message and pass it through a stage.
+     * @param directory directory of message files
+     * @param stage processing applied to each message on a worker thread
+     * @param <T> type of processed message
+     * @return processed messages in directory order
+     */
+    public <T> List<T> load(Path directory, Function<Message, T> stage) {
+
+        List<Future<T>> results = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads * QUEUE_DEPTH_PER_THREAD);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                // Wait for a slot, so the walk does not run ahead of the workers.
+                inFlight.acquire();
+                results.add(workers.submit(() -> {
+                    try {
+                        return stage.apply(new Message(file, encoding));
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+        } catch (IOException | DirectoryIteratorException ex) {
+            // IOException can never be thrown by the iteration.
+            // In this snippet, it can only be thrown by newDirectoryStream.
+            System.err.println(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+            throw new IllegalStateException("Interrupted while loading " + directory, ex);
+        } finally {
+            workers.shutdown();
+        }
+
+        // Collect results in directory order.
+        List<T> messages = new ArrayList<>(results.size());
+        try {
+            for (Future<T> result : results) {
+                messages.add(result.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading " + directory, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+
+        return messages;
+    }
+}
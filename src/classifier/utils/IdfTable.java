@@ -0,0 +1,157 @@
+package classifier.utils;
+
+import classifier.messagetypes.TokenizedMessage;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Document frequencies of the terms of a corpus, indexed by term id.
+ *
+ * Each KNN index builds its own table, from the training messages or, for
+ * a mapped index, from the lengths of its posting lists. The table is then
+ * kept up to date as messages are learned or forgotten, so the corpus never
+ * has to be scanned again to weigh new messages. Weighing a message takes
+ * the read lock once, so messages can be weighed on many threads while the
+ * table is updated.
+ */
+public class IdfTable {
+
+    /**
+     * Number of corpus messages containing each term, indexed by term id.
+     */
+    private int[] documentFrequencies;
+
+    /**
+     * Number of corpus messages.
+     */
+    private int numDocuments;
+
+    /**
+     * Number of tokens in all corpus messages.
+     */
+    private long totalLength;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor over existing counts, e.g. from a saved index.
+     * @param documentFrequencies number of messages containing each term, indexed by term id
+     * @param numDocuments number of messages
+     * @param totalLength number of tokens in all messages
+     */
+    public IdfTable(int[] documentFrequencies, int numDocuments, long totalLength) {
+        this.documentFrequencies = documentFrequencies;
+        this.numDocuments = numDocuments;
+        this.totalLength = totalLength;
+    }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Add a message to the corpus. Costs O(terms in message).
+     * @param tkMessage tokenized message
+     */
+    public void add(TokenizedMessage tkMessage) {
+        count(tkMessage, 1);
+    }
+
+    /**
+     * Remove a message added before from the corpus.
+     * Costs O(terms in message).
+     * @param tkMessage tokenized message
+     */
+    public void remove(TokenizedMessage tkMessage) {
+        count(tkMessage, -1);
+    }
+
+    /**
+     * Weigh the terms of a vector.
+     * @param weighting weighting scheme
+     * @param termIds term ids, unknown terms have document frequency 0
+     * @param termCounts occurrences of each term, parallel to termIds
+     * @return weights parallel to termIds
+     */
+    public double[] weigh(TermWeighting weighting, int[] termIds, int[] termCounts) {
+        int length = 0;
+        for (int termCount : termCounts) {
+            length += termCount;
+        }
+
+        double[] weights = new double[termIds.length];
+        lock.readLock().lock();
+        try {
+            double averageLength = (numDocuments > 0) ? totalLength / (double) numDocuments : 0.0;
+            for (int i = 0; i < termIds.length; i++) {
+                weights[i] = weighting.weight(termCounts[i], length, averageLength,
+                        documentFrequency(termIds[i]), numDocuments);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return weights;
+    }
+
+    /**
+     * @param termId term id
+     * @return number of corpus messages containing the term
+     */
+    public int documentFrequency(int termId) {
+        int[] frequencies = documentFrequencies;
+        return (termId >= 0 && termId < frequencies.length) ? frequencies[termId] : 0;
+    }
+
+    /**
+     * @return number of corpus messages
+     */
+    public int getNumDocuments() {
+        return numDocuments;
+    }
+
+    /**
+     * @return number of tokens in all corpus messages
+     */
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Count a message's terms and tokens into the corpus.
+     * @param tkMessage tokenized message
+     * @param delta 1 to add the message, -1 to remove it
+     */
+    private void count(TokenizedMessage tkMessage, int delta) {
+        int[] termIds = tkMessage.getTermIds();
+        int[] termCounts = tkMessage.getTermCounts();
+
+        lock.writeLock().lock();
+        try {
+            // Term ids are ascending, so the last one is the largest.
+            if (termIds.length > 0 && termIds[termIds.length - 1] >= documentFrequencies.length) {
+                documentFrequencies = Arrays.copyOf(documentFrequencies,
+                        Math.max(termIds[termIds.length - 1] + 1, documentFrequencies.length * 2));
+            }
+            for (int i = 0; i < termIds.length; i++) {
+                documentFrequencies[termIds[i]] += delta;
+                totalLength += delta * termCounts[i];
+            }
+            numDocuments += delta;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
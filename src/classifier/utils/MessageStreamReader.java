@@ -0,0 +1,123 @@
+package classifier.utils;
+
+import classifier.messagetypes.Message;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Reader splitting a stream of messages, e.g. standard input, into messages,
+ * without one file per message.
+ *
+ * Messages are framed as in an mbox file: a line starting with "From "
+ * starts the next message, and the rest of that line names it. Body lines
+ * starting with "From " are escaped as ">From " and unescaped when read.
+ * Each message is in the format of the message files: subject line, empty
+ * line, body. A stream without "From " lines is a single message.
+ *
+ * Example:
+ * <pre>
+ *     From message-1
+ *     Subject: cheap meds
+ *
+ *     buy now
+ *     From message-2
+ *     Subject: meeting notes
+ *     ...
+ * </pre>
+ */
+public class MessageStreamReader implements AutoCloseable {
+
+    private static final String SEPARATOR = "From ";
+
+    private final BufferedReader reader;
+
+    /**
+     * Separator line read ahead, starting the next message, or null.
+     */
+    private String nextSeparator;
+
+    /**
+     * Number of messages read.
+     */
+    private int count;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor.
+     * @param reader stream of messages
+     */
+    public MessageStreamReader(Reader reader) {
+        this.reader = (reader instanceof BufferedReader)
+                ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Read the next message. Only the lines of that message are held.
+     * @return the message, or null at the end of the stream
+     * @throws IOException if the stream can't be read
+     */
+    public Message next() throws IOException {
+        String separator = nextSeparator;
+        nextSeparator = null;
+
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (count == 0 && separator == null && lines.isEmpty() && line.isEmpty()) {
+                continue; // empty lines at the start of the stream
+            }
+            if (line.startsWith(SEPARATOR)) {
+                if (separator == null && lines.isEmpty()) {
+                    separator = line; // first message of the stream
+                    continue;
+                }
+                nextSeparator = line;
+                break;
+            }
+            lines.add(unescape(line));
+        }
+
+        if (line == null && separator == null && lines.isEmpty()) {
+            return null;
+        }
+
+        count++;
+        String name = (separator != null && separator.length() > SEPARATOR.length())
+                ? separator.substring(SEPARATOR.length()).trim() : "message-" + count;
+        return new Message(name, lines);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+
+    //---------------------------------+
+    //     PRIVATE STATIC METHODS     /
+    //-------------------------------+
+
+    /**
+     * Remove one '>' from a line quoting a separator, e.g. ">From " or ">>From ".
+     */
+    private static String unescape(String line) {
+        int quotes = 0;
+        while (quotes < line.length() && line.charAt(quotes) == '>') {
+            quotes++;
+        }
+        return (quotes > 0 && line.startsWith(SEPARATOR, quotes)) ? line.substring(1) : line;
+    }
+}
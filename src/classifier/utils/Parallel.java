@@ -0,0 +1,80 @@
+package classifier.utils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+
+/**
+ * Runs independent tasks over a range of indexes on a fork-join pool.
+ */
+public class Parallel {
+
+    private Parallel() { }
+
+
+    //---------------------------------+
+    //     PUBLIC STATCIC METHODS     /
+    //-------------------------------+
+
+    /**
+     * Run a task for every index in [0, size), using up to the given number
+     * of threads, on a pool created for the call. With one thread the task
+     * runs in index order on the calling thread. The task must be safe to
+     * run concurrently for different indexes. Callers running many tasks,
+     * e.g. per batch of a stream, should own a pool instead, see
+     * forEachIndex(ForkJoinPool, int, IntConsumer).
+     * @param size number of indexes
+     * @param threads maximum number of threads to use
+     * @param task task taking an index
+     */
+    public static void forEachIndex(int size, int threads, IntConsumer task) {
+        if (threads <= 1 || size <= 1) {
+            forEachIndex(null, size, task);
+            return;
+        }
+
+        // A dedicated pool, so the common pool is left alone and the
+        // parallelism is exactly the number of threads asked for.
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            forEachIndex(pool, size, task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Run a task for every index in [0, size) on a pool owned by the
+     * caller. Without a pool the task runs in index order on the calling
+     * thread. The task must be safe to run concurrently for different
+     * indexes.
+     * @param pool pool to run the tasks on, or null for the calling thread
+     * @param size number of indexes
+     * @param task task taking an index
+     */
+    public static void forEachIndex(ForkJoinPool pool, int size, IntConsumer task) {
+
+        // Sequential.
+        if (pool == null || pool.getParallelism() <= 1 || size <= 1) {
+            for (int i = 0; i < size; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+
+        // Parallel.
+        try {
+            pool.submit(() -> IntStream.range(0, size).parallel().forEach(task)).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running parallel tasks.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package classifier.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+
+/**
+ * Token stage dropping stop words.
+ *
+ * The stop words are hashed once into a read-only open addressing table,
+ * so each token is checked in constant time straight from the tokenizer's
+ * buffer. Stop words are matched exactly, so put this stage after
+ * normalization.
+ */
+public class StopWordFilter implements TokenStage {
+
+    /**
+     * Default stop words.
+     * TODO Refer to list of top stop words?
+     */
+    public static final String[] DEFAULT_STOP_WORDS = {"i", "a", "about", "an",
+            "are", "as", "at", "be", "by", "com", "for", "from", "how",
+            "in", "is", "it", "of", "on", "or", "that", "the", "this",
+            "to", "was", "what", "when", "where", "who", "will", "with"};
+
+    /**
+     * The stop words.
+     */
+    private final TokenSet stopWords;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor for the default stop words.
+     */
+    public StopWordFilter() {
+        this(Arrays.asList(DEFAULT_STOP_WORDS));
+    }
+
+    /**
+     * Constructor.
+     * @param stopWords stop words to drop
+     */
+    public StopWordFilter(Collection<String> stopWords) {
+        this.stopWords = new TokenSet(stopWords.size());
+        for (String stopWord : stopWords) {
+            this.stopWords.add(stopWord);
+        }
+    }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    @Override
+    public int apply(char[] buffer, int length) {
+        return stopWords.contains(buffer, length) ? 0 : length;
+    }
+}
@@ -0,0 +1,74 @@
+package classifier.utils;
+
+import java.util.Locale;
+
+
+/**
+ * Term weighting schemes for sparse message vectors.
+ */
+public enum TermWeighting {
+
+    /**
+     * Every term weighs 1, the vector is the set of distinct tokens.
+     */
+    NONE {
+        @Override
+        public double weight(int termCount, int length, double averageLength,
+                             int documentFrequency, int numDocuments) {
+            return 1.0;
+        }
+    },
+
+    /**
+     * Term count times smoothed inverse document frequency,
+     * log((1 + N) / (1 + df)) + 1.
+     */
+    TFIDF {
+        @Override
+        public double weight(int termCount, int length, double averageLength,
+                             int documentFrequency, int numDocuments) {
+            double idf = Math.log((1.0 + numDocuments) / (1.0 + documentFrequency)) + 1.0;
+            return termCount * idf;
+        }
+    },
+
+    /**
+     * Okapi BM25 with k1 = 1.2 and b = 0.75: the term count saturates and
+     * is normalized by the message length relative to the average length.
+     */
+    BM25 {
+        @Override
+        public double weight(int termCount, int length, double averageLength,
+                             int documentFrequency, int numDocuments) {
+            double idf = Math.log(1.0 + (numDocuments - documentFrequency + 0.5) / (documentFrequency + 0.5));
+            double lengthRatio = (averageLength > 0) ? length / averageLength : 1.0;
+            return idf * termCount * (BM25_K1 + 1)
+                    / (termCount + BM25_K1 * (1 - BM25_B + BM25_B * lengthRatio));
+        }
+    };
+
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+
+    /**
+     * Weight of a term in a message.
+     * @param termCount occurrences of the term in the message
+     * @param length number of tokens in the message
+     * @param averageLength average number of tokens in the corpus messages
+     * @param documentFrequency number of corpus messages containing the term
+     * @param numDocuments number of corpus messages
+     * @return the weight
+     */
+    public abstract double weight(int termCount, int length, double averageLength,
+                                  int documentFrequency, int numDocuments);
+
+    /**
+     * Parse a scheme name, ignoring case, e.g. "tfidf".
+     * @param name name of the scheme
+     * @return the scheme
+     * @throws IllegalArgumentException if there is no such scheme
+     */
+    public static TermWeighting of(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
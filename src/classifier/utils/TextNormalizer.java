@@ -1,16 +1,33 @@
 package classifier.utils;
-// TODO Remove classifier.utils.TextNormalizer?
 
-public class TextNormalizer {
+
+/**
+ * Token normalization: converts tokens to lowercase.
+ */
+public class TextNormalizer implements TokenStage {
 
     public TextNormalizer() { }
 
+    /**
+     * Normalize a string.
+     * @param text text to normalize
+     * @return the normalized text
+     */
     public static String normalize(String text) {
+        char[] buffer = text.toCharArray();
+        lowercase(buffer, buffer.length);
+        return new String(buffer);
+    }
 
-        String normalizedText = null;
-
-        // TODO Normalize here.
+    @Override
+    public int apply(char[] buffer, int length) {
+        lowercase(buffer, length);
+        return length;
+    }
 
-        return normalizedText;
+    private static void lowercase(char[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            buffer[i] = Character.toLowerCase(buffer[i]);
+        }
     }
 }
@@ -0,0 +1,149 @@
+package classifier.utils;
+
+import java.util.Arrays;
+
+
+/**
+ * Open addressing hash set of tokens, probed with the characters of a
+ * token in a buffer so that no String is needed to look a token up.
+ */
+class TokenSet {
+
+    /**
+     * Slots holding the tokens. The length is a power of two.
+     */
+    private String[] table;
+
+    /**
+     * Number of tokens in the set.
+     */
+    private int size;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor for an empty set.
+     */
+    TokenSet() {
+        this(128);
+    }
+
+    /**
+     * Constructor for an empty set.
+     * @param expectedSize number of tokens expected, to size the table
+     */
+    TokenSet(int expectedSize) {
+        table = new String[Integer.highestOneBit(Math.max(expectedSize, 8) * 4 - 1) * 2];
+    }
+
+
+    //------------------------+
+    //     PACKAGE METHODS   /
+    //----------------------+
+
+    /**
+     * Add a token if not present.
+     * @param buffer buffer holding the token
+     * @param length length of the token
+     * @return the new token, or null if already present
+     */
+    String addIfAbsent(char[] buffer, int length) {
+        int hash = hash(buffer, length);
+        int slot = find(hash, buffer, length);
+        if (table[slot] != null) { return null; }
+
+        String token = new String(buffer, 0, length);
+        insert(slot, token);
+        return token;
+    }
+
+    /**
+     * Add a token if not present.
+     * @param token the token
+     */
+    void add(String token) {
+        char[] chars = token.toCharArray();
+        int slot = find(token.hashCode(), chars, chars.length);
+        if (table[slot] == null) { insert(slot, token); }
+    }
+
+    /**
+     * @param buffer buffer holding the token
+     * @param length length of the token
+     * @return true if the token is in the set
+     */
+    boolean contains(char[] buffer, int length) {
+        return table[find(hash(buffer, length), buffer, length)] != null;
+    }
+
+    /**
+     * Remove all tokens.
+     */
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(table, null);
+            size = 0;
+        }
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * Same hash as String.hashCode().
+     */
+    private static int hash(char[] buffer, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        return hash;
+    }
+
+    /**
+     * @return slot holding the token, or the empty slot where it belongs
+     */
+    private int find(int hash, char[] buffer, int length) {
+        int mask = table.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (table[slot] != null) {
+            if (table[slot].hashCode() == hash && matches(table[slot], buffer, length)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static boolean matches(String token, char[] buffer, int length) {
+        if (token.length() != length) { return false; }
+        for (int i = 0; i < length; i++) {
+            if (token.charAt(i) != buffer[i]) { return false; }
+        }
+        return true;
+    }
+
+    private void insert(int slot, String token) {
+        table[slot] = token;
+        if (++size * 2 > table.length) { grow(); }
+    }
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for (String token : old) {
+            if (token == null) { continue; }
+            int hash = token.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = token;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package classifier.utils;
+
+
+/**
+ * A per-token stage of the wrangle pipeline, e.g. normalization,
+ * stop word removal or stemming.
+ *
+ * Stages work in place on the tokenizer's buffer, so a chain of stages
+ * runs in the same single pass over the text as tokenization and
+ * nothing is allocated for tokens that are dropped.
+ */
+public interface TokenStage {
+
+    /**
+     * Transform a token in place.
+     * @param buffer buffer holding the token, may be modified
+     * @param length length of the token
+     * @return new length of the token, or 0 to drop it
+     */
+    int apply(char[] buffer, int length);
+
+    /**
+     * Chain another stage after this one.
+     * @param next stage applied to the tokens this stage keeps
+     * @return the combined stage
+     */
+    default TokenStage andThen(TokenStage next) {
+        return (buffer, length) -> {
+            int newLength = apply(buffer, length);
+            return (newLength == 0) ? 0 : next.apply(buffer, newLength);
+        };
+    }
+}
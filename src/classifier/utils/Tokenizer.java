@@ -5,19 +5,52 @@ import classifier.messagetypes.TokenizedMessage;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
 
 
 /**
  * Tokenization provider.
+ *
+ * Text is scanned once: tokens are split on whitespace into a reusable
+ * buffer, passed through the token stages (lowercasing by default) and
+ * deduplicated against the tokens already seen, so a String is only
+ * allocated for the first occurrence of each distinct token.
  */
 public class Tokenizer {
 
     /**
-     * Remove duplicate tokens by default.
+     * Initial size of the per-thread token buffer.
      */
-    private static boolean removeDups = true;
+    private static final int INITIAL_BUFFER_SIZE = 64;
+
+    /**
+     * Per-thread buffer holding the token being scanned.
+     */
+    private static final ThreadLocal<char[][]> BUFFER =
+            ThreadLocal.withInitial(() -> new char[][] { new char[INITIAL_BUFFER_SIZE] });
+
+    /**
+     * Per-thread set of distinct tokens of the text being tokenized.
+     */
+    private static final ThreadLocal<TokenSet> SEEN = ThreadLocal.withInitial(TokenSet::new);
+
+    /**
+     * Token stage applied unless others are given.
+     */
+    private static final TokenStage DEFAULT_STAGE = new TextNormalizer();
+
+    /**
+     * Receives each token found by scan().
+     */
+    public interface TokenSink {
+
+        /**
+         * Accept a token. The buffer is reused for the next token.
+         * @param buffer buffer holding the token
+         * @param length length of the token
+         */
+        void token(char[] buffer, int length);
+    }
 
 
     //---------------------------------+
@@ -31,42 +64,145 @@ public class Tokenizer {
      * @return a classifier.messagetypes.TokenizedMessage
      */
     public static TokenizedMessage tokenize(Message message, boolean removeDuplicates) {
-        removeDups = removeDuplicates;
-        return tokenize(message);
+        return tokenize(message, DEFAULT_STAGE, removeDuplicates);
     }
 
     /**
-     * Tokenizes messages of type classifier.messagetypes.Message
+     * Tokenizes a message, passing every token through the given stages
+     * in the same pass.
      * @param message message to tokenize
+     * @param stage token stages, e.g. normalization and stop word removal
+     * @param removeDuplicates remove duplicates if true
      * @return the tokenized message
      */
-    public static TokenizedMessage tokenize(Message message) {
+    public static TokenizedMessage tokenize(Message message, TokenStage stage, boolean removeDuplicates) {
 
         // New tokenized message with existing message data.
         TokenizedMessage tkMessage = new TokenizedMessage(message);
 
-        // Tokenize.
-        List<String> subjectTokens;
+        // Tokenize subject.
+        tkMessage.setSubjectTokens(tokenize(message.getSubject(), stage, removeDuplicates));
+
+        // Tokenize body, line by line.
         List<String> bodyTokens = new ArrayList<>();
-        if (removeDups) {
-            // Tokenize remove duplicate tokens.
-            subjectTokens = new ArrayList<>(new HashSet<>(Arrays.asList(message.getSubject().split("\\s+"))));
-            for (String line : message.getBody()) {
-                List<String> lineTokens = new ArrayList<>(new HashSet<>(Arrays.asList(line.split("\\s+"))));
-                bodyTokens.addAll(lineTokens);
-            }
-        } else {
-            // Tokenize but don't remove duplicate tokens.
-            subjectTokens = Arrays.asList(message.getSubject().split("\\s+"));
-            for (String line : message.getBody()) {
-                List<String> lineTokens = Arrays.asList(line.split("\\s+"));
-                bodyTokens.addAll(lineTokens);
-            }
+        TokenSet seen = SEEN.get();
+        seen.clear();
+        for (String line : message.getBody()) {
+            collect(line, stage, removeDuplicates, seen, bodyTokens);
         }
-
-        tkMessage.setSubjectTokens(subjectTokens);
         tkMessage.setBodyTokens(bodyTokens);
 
         return tkMessage;
     }
+
+    /**
+     * Tokenizes messages of type classifier.messagetypes.Message,
+     * removing duplicate tokens.
+     * @param message message to tokenize
+     * @return the tokenized message
+     */
+    public static TokenizedMessage tokenize(Message message) {
+        return tokenize(message, true);
+    }
+
+    /**
+     * Tokenize text into lowercase tokens.
+     * @param text text to tokenize
+     * @param removeDuplicates remove duplicates if true
+     * @return tokens in order of appearance
+     */
+    public static List<String> tokenize(CharSequence text, boolean removeDuplicates) {
+        return tokenize(text, DEFAULT_STAGE, removeDuplicates);
+    }
+
+    /**
+     * Tokenize text, passing every token through the given stages
+     * in the same pass.
+     * @param text text to tokenize
+     * @param stage token stages
+     * @param removeDuplicates remove duplicates if true
+     * @return tokens in order of appearance
+     */
+    public static List<String> tokenize(CharSequence text, TokenStage stage, boolean removeDuplicates) {
+        List<String> tokens = new ArrayList<>();
+        TokenSet seen = SEEN.get();
+        seen.clear();
+        collect(text, stage, removeDuplicates, seen, tokens);
+        return tokens;
+    }
+
+    /**
+     * Scan text once, passing each whitespace separated token to the sink
+     * as it is. Nothing is allocated per token.
+     * @param text text to scan
+     * @param sink receives each token
+     */
+    public static void scan(CharSequence text, TokenSink sink) {
+        char[][] holder = BUFFER.get();
+        char[] buffer = holder[0];
+        int length = 0;
+
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+
+            if (isWhitespace(c)) {
+                // End of token.
+                if (length > 0) {
+                    sink.token(buffer, length);
+                    length = 0;
+                }
+            } else {
+                // Grow buffer for unusually long tokens.
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    holder[0] = buffer;
+                }
+                buffer[length++] = c;
+            }
+        }
+
+        // Last token.
+        if (length > 0) {
+            sink.token(buffer, length);
+        }
+    }
+
+
+    //---------------------------------+
+    //     PRIVATE STATIC METHODS     /
+    //-------------------------------+
+
+    /**
+     * Scan text, pass tokens through the stages and add those kept to a list.
+     * @param text text to tokenize
+     * @param stage token stages
+     * @param removeDuplicates skip tokens already in the set if true
+     * @param seen tokens seen so far
+     * @param tokens list the tokens are added to
+     */
+    private static void collect(CharSequence text, TokenStage stage, boolean removeDuplicates,
+                                TokenSet seen, List<String> tokens) {
+        if (text == null) { return; }
+
+        scan(text, (buffer, length) -> {
+            length = stage.apply(buffer, length);
+            if (length == 0) { return; }
+
+            if (removeDuplicates) {
+                String token = seen.addIfAbsent(buffer, length);
+                if (token != null) { tokens.add(token); }
+            } else {
+                tokens.add(new String(buffer, 0, length));
+            }
+        });
+    }
+
+    /**
+     * Whitespace as matched by the regex \s, which tokens used to be split on.
+     * @param c character
+     * @return true if c separates tokens
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
 }
@@ -0,0 +1,146 @@
+package classifier.utils;
+
+
+/**
+ * Selects the k highest scoring ids from a stream of (id, score) pairs.
+ *
+ * Backed by a fixed-size binary min-heap over parallel primitive arrays,
+ * so offering n pairs costs O(n log k) and allocates nothing.
+ * Pairs rank by score, and pairs of equal score by lower id, so the kept
+ * pairs don't depend on the order they are offered in.
+ * Instances are not thread-safe; call clear() to reuse one.
+ */
+public class TopKSelector {
+
+    /**
+     * Maximum number of pairs kept.
+     */
+    private final int k;
+
+    /**
+     * Heap of ids, parallel to scores.
+     */
+    private final int[] ids;
+
+    /**
+     * Heap of scores. The lowest ranked kept pair is at the root.
+     */
+    private final double[] scores;
+
+    /**
+     * Number of pairs currently kept.
+     */
+    private int size;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor.
+     * @param k number of highest scoring pairs to keep
+     */
+    public TopKSelector(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1: " + k);
+        }
+        this.k = k;
+        this.ids = new int[k];
+        this.scores = new double[k];
+    }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Offer a pair, keeping it if it is among the k highest ranked pairs so far.
+     * @param id id of the scored item
+     * @param score score of the item
+     */
+    public void offer(int id, double score) {
+        if (size < k) {
+            // Heap not full yet, sift the new pair up.
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!ranksBelow(id, score, ids[parent], scores[parent])) { break; }
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+        } else if (ranksBelow(ids[0], scores[0], id, score)) {
+            // Replace the lowest ranked pair and sift down.
+            siftDown(id, score);
+        }
+    }
+
+    /**
+     * Forget all kept pairs.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return number of pairs kept
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i position of the pair, in heap order
+     * @return id of the pair at position i
+     */
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * @param i position of the pair, in heap order
+     * @return score of the pair at position i
+     */
+    public double getScore(int i) {
+        return scores[i];
+    }
+
+
+    //--------------------------+
+    //     PRIVATE METHODS     /
+    //------------------------+
+
+    /**
+     * @return true if pair a ranks below pair b: a lower score, or the same
+     *         score and a higher id
+     */
+    private static boolean ranksBelow(int idA, double scoreA, int idB, double scoreB) {
+        return scoreA < scoreB || (scoreA == scoreB && idA > idB);
+    }
+
+    /**
+     * Place the pair at the root and restore the heap property.
+     * @param id id of the pair
+     * @param score score of the pair
+     */
+    private void siftDown(int id, double score) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && ranksBelow(ids[right], scores[right], ids[child], scores[child])) {
+                child = right;
+            }
+            if (ranksBelow(id, score, ids[child], scores[child])) { break; }
+            ids[i] = ids[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+}
@@ -0,0 +1,113 @@
+package classifier.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Dictionary interning tokens as dense int term ids.
+ *
+ * Ids are assigned in order of first appearance starting at 0 and never
+ * change, so they can index primitive arrays. Lookups in both directions
+ * are lock-free, adding a new token is synchronized. The shared instance is used by
+ * TokenizedMessage unless another vocabulary is given.
+ */
+public class Vocabulary {
+
+    /**
+     * Vocabulary shared by all messages by default.
+     */
+    private static final Vocabulary SHARED = new Vocabulary();
+
+    /**
+     * Maps tokens to term ids.
+     */
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * Maps term ids to tokens. Written under this, replaced when it grows.
+     */
+    private volatile String[] terms = new String[1024];
+
+    /**
+     * Number of terms. Written under this.
+     */
+    private volatile int size;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor for an empty vocabulary.
+     */
+    public Vocabulary() { }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * @return the vocabulary shared by all messages by default
+     */
+    public static Vocabulary shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get the term id of a token, adding the token if it is new.
+     * @param token the token
+     * @return term id of the token
+     */
+    public int idOf(String token) {
+        Integer id = ids.get(token);
+        if (id != null) { return id; }
+
+        synchronized (this) {
+            id = ids.get(token);
+            if (id == null) {
+                id = size;
+                if (id == terms.length) {
+                    terms = Arrays.copyOf(terms, id * 2);
+                }
+                terms[id] = token;
+                size = id + 1;
+                // Publishing the id after the token makes the token visible
+                // to threads that got the id from the map.
+                ids.put(token, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Get the term id of a token without adding it.
+     * @param token the token
+     * @return term id of the token, or -1 if unknown
+     */
+    public int lookup(String token) {
+        Integer id = ids.get(token);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Get the token for a term id.
+     * @param id term id
+     * @return the token
+     */
+    public String termOf(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Unknown term id " + id);
+        }
+        return terms[id];
+    }
+
+    /**
+     * @return number of terms, which is also the next term id
+     */
+    public int size() {
+        return size;
+    }
+}
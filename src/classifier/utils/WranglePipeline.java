@@ -0,0 +1,176 @@
+package classifier.utils;
+
+import classifier.messagetypes.Message;
+import classifier.messagetypes.TokenizedMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+
+/**
+ * Wrangle pipeline turning messages into tokenized messages:
+ *  - tokenize
+ *  - normalize
+ *  - remove stop words
+ *  - stem
+ *  - weight
+ *
+ * Token stages (normalize, stop words, stem) are fused into the tokenizer's
+ * single pass over each message. Message stages (e.g. term weighting) run
+ * afterwards on the tokenized message. Once configured, a pipeline has no
+ * mutable state and can be shared by threads.
+ *
+ * Example, the pipeline used by Classify with stop word removal:
+ * <pre>
+ *     WranglePipeline pipeline = new WranglePipeline()
+ *             .normalize()
+ *             .removeStopWords();
+ *     TokenizedMessage tkMessage = pipeline.apply(message);
+ * </pre>
+ */
+public class WranglePipeline implements Function<Message, TokenizedMessage> {
+
+    /**
+     * Chain of token stages, starting with one keeping every token as it is.
+     */
+    private TokenStage tokenStages = (buffer, length) -> length;
+
+    /**
+     * Chain of message stages, run after tokenization.
+     */
+    private Consumer<TokenizedMessage> messageStages = tkMessage -> { };
+
+    /**
+     * Remove duplicate tokens by default.
+     */
+    private boolean removeDuplicates = true;
+
+    /**
+     * Keep the raw message text after tokenization by default.
+     */
+    private boolean retainRawText = true;
+
+    //-----------------------+
+    //     CONSTRUCTORS     /
+    //---------------------+
+
+    /**
+     * Constructor for a pipeline that only tokenizes.
+     */
+    public WranglePipeline() { }
+
+
+    //-------------------------+
+    //     PUBLIC METHODS     /
+    //-----------------------+
+
+    /**
+     * Add the normalization stage: convert tokens to lowercase.
+     * @return this pipeline
+     */
+    public WranglePipeline normalize() {
+        return addTokenStage(new TextNormalizer());
+    }
+
+    /**
+     * Add a stage removing the default stop words.
+     * @return this pipeline
+     */
+    public WranglePipeline removeStopWords() {
+        return addTokenStage(new StopWordFilter());
+    }
+
+    /**
+     * Add a stage removing the given stop words.
+     * @param stopWords stop words to remove
+     * @return this pipeline
+     */
+    public WranglePipeline removeStopWords(Collection<String> stopWords) {
+        return addTokenStage(new StopWordFilter(stopWords));
+    }
+
+    /**
+     * Add a stemming stage.
+     * @param stemmer stage rewriting tokens to their stems in place
+     * @return this pipeline
+     */
+    public WranglePipeline stem(TokenStage stemmer) {
+        return addTokenStage(stemmer);
+    }
+
+    /**
+     * Add a term weighting stage.
+     * @param weighting stage setting the term weights of tokenized messages
+     * @return this pipeline
+     */
+    public WranglePipeline weight(Consumer<TokenizedMessage> weighting) {
+        messageStages = messageStages.andThen(weighting);
+        return this;
+    }
+
+    /**
+     * Add a token stage, applied after the stages already added.
+     * @param stage token stage
+     * @return this pipeline
+     */
+    public WranglePipeline addTokenStage(TokenStage stage) {
+        tokenStages = tokenStages.andThen(stage);
+        return this;
+    }
+
+    /**
+     * @param removeDuplicates remove duplicate tokens if true
+     * @return this pipeline
+     */
+    public WranglePipeline removeDuplicates(boolean removeDuplicates) {
+        this.removeDuplicates = removeDuplicates;
+        return this;
+    }
+
+    /**
+     * @param retainRawText keep the raw message body after tokenization if true,
+     *                      otherwise only the tokens are kept in memory
+     * @return this pipeline
+     */
+    public WranglePipeline retainRawText(boolean retainRawText) {
+        this.retainRawText = retainRawText;
+        return this;
+    }
+
+    /**
+     * Wrangle a message.
+     * @param message message
+     * @return wrangled message
+     */
+    @Override
+    public TokenizedMessage apply(Message message) {
+
+        // Tokenize, running all token stages in the same pass.
+        TokenizedMessage tkMessage = Tokenizer.tokenize(message, tokenStages, removeDuplicates);
+
+        if (!retainRawText) {
+            tkMessage.setBody(null);
+        }
+
+        // Message stages.
+        messageStages.accept(tkMessage);
+
+        return tkMessage;
+    }
+
+    /**
+     * Wrangle a list of messages.
+     * @param messages list of messages
+     * @return list of wrangled messages
+     */
+    public List<TokenizedMessage> apply(List<? extends Message> messages) {
+        List<TokenizedMessage> wrangledMessages = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            wrangledMessages.add(apply(message));
+        }
+        return wrangledMessages;
+    }
+}